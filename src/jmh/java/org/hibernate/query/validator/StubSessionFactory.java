@@ -0,0 +1,234 @@
+package org.hibernate.query.validator;
+
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.CompositeCustomType;
+import org.hibernate.type.CompositeType;
+import org.hibernate.type.Type;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hibernate.internal.util.StringHelper.root;
+import static org.hibernate.internal.util.StringHelper.unroot;
+
+/**
+ * A {@link MockSessionFactory} backed by a small hand-written
+ * metamodel instead of compiler symbols, so that the parser
+ * and walker can be benchmarked without running a compiler.
+ */
+class StubSessionFactory extends MockSessionFactory {
+
+    private static final Type LONG = typeResolver.basic("long");
+    private static final Type INTEGER = typeResolver.basic("integer");
+    private static final Type STRING = typeResolver.basic("string");
+    private static final Type DATE = typeResolver.basic("date");
+    private static final Type BIG_DECIMAL = typeResolver.basic("big_decimal");
+
+    private final Map<String, Map<String, Type>> propertiesByEntityName = new HashMap<>();
+    private final Map<String, String> superclassesByEntityName = new HashMap<>();
+    private final Map<String, Type> elementTypesByRole = new HashMap<>();
+    private final Map<String, Integer> constructorArities = new HashMap<>();
+
+    StubSessionFactory() {
+        Type country = component("Country",
+                "code", STRING,
+                "name", STRING);
+        Type address = component("Address",
+                "street", STRING,
+                "city", STRING,
+                "zip", STRING,
+                "country", country);
+
+        entity("Person", null,
+                "id", LONG,
+                "name", STRING,
+                "dob", DATE,
+                "address", address,
+                "pastAddresses", collection("Person.pastAddresses", "Set", address),
+                "notes", collection("Person.notes", "List", STRING),
+                "emergencyContact", typeHelper.entity("Person"));
+        entity("Employee", "Person",
+                "employeeId", INTEGER,
+                "contacts", collection("Employee.contacts", "Map",
+                        typeHelper.entity("Person")));
+        entity("Product", null,
+                "id", LONG,
+                "name", STRING,
+                "price", BIG_DECIMAL);
+        entity("Purchase", null,
+                "id", LONG,
+                "date", DATE,
+                "total", BIG_DECIMAL,
+                "customer", typeHelper.entity("Person"),
+                "lines", collection("Purchase.lines", "List",
+                        typeHelper.entity("PurchaseLine")));
+        entity("PurchaseLine", null,
+                "id", LONG,
+                "purchase", typeHelper.entity("Purchase"),
+                "product", typeHelper.entity("Product"),
+                "quantity", INTEGER);
+
+        constructorArities.put("bench.Summary", 3);
+    }
+
+    private void entity(String entityName, String superclass, Object... properties) {
+        Map<String, Type> map = new LinkedHashMap<>();
+        for (int i = 0; i < properties.length; i += 2) {
+            map.put((String) properties[i], (Type) properties[i + 1]);
+        }
+        propertiesByEntityName.put(entityName, map);
+        if (superclass != null) {
+            superclassesByEntityName.put(entityName, superclass);
+        }
+    }
+
+    private CollectionType collection(String role, String kind, Type elementType) {
+        elementTypesByRole.put(role, elementType);
+        return createCollectionType(role, kind);
+    }
+
+    private static Type component(String name, Object... properties) {
+        String[] propertyNames = new String[properties.length / 2];
+        Type[] propertyTypes = new Type[properties.length / 2];
+        for (int i = 0; i < propertyNames.length; i++) {
+            propertyNames[i] = (String) properties[2 * i];
+            propertyTypes[i] = (Type) properties[2 * i + 1];
+        }
+        return new CompositeCustomType(new MockComponent() {
+            @Override
+            public String[] getPropertyNames() {
+                return propertyNames;
+            }
+
+            @Override
+            public Type[] getPropertyTypes() {
+                return propertyTypes;
+            }
+        }) {
+            @Override
+            public String getName() {
+                return name;
+            }
+        };
+    }
+
+    private Type findProperty(String entityName, String propertyName) {
+        //iterate up the superclass hierarchy
+        while (entityName != null) {
+            Type type = propertiesByEntityName.get(entityName).get(propertyName);
+            if (type != null) {
+                return type;
+            }
+            entityName = superclassesByEntityName.get(entityName);
+        }
+        return null;
+    }
+
+    private static Type findPropertyByPath(Type type, String[] path, int from) {
+        for (int i = from; i < path.length && type != null; i++) {
+            if (!type.isComponentType()) {
+                return null;
+            }
+            CompositeType component = (CompositeType) type;
+            String[] names = component.getPropertyNames();
+            Type[] types = component.getSubtypes();
+            type = null;
+            for (int j = 0; j < names.length; j++) {
+                if (names[j].equals(path[i])) {
+                    type = types[j];
+                }
+            }
+        }
+        return type;
+    }
+
+    private List<String> superclassNames(String entityName) {
+        List<String> names = new ArrayList<>();
+        for (String current = superclassesByEntityName.get(entityName);
+             current != null;
+             current = superclassesByEntityName.get(current)) {
+            names.add(current);
+        }
+        return names;
+    }
+
+    @Override
+    MockEntityPersister createMockEntityPersister(String entityName) {
+        return propertiesByEntityName.containsKey(entityName) ?
+                new EntityPersister(entityName) : null;
+    }
+
+    @Override
+    MockCollectionPersister createMockCollectionPersister(String role) {
+        String entityName = root(role);
+        Type type = findProperty(entityName, unroot(role));
+        if (!(type instanceof CollectionType)) {
+            return null;
+        }
+        CollectionType collectionType = (CollectionType) type;
+        return new CollectionPersister(collectionType.getRole(), collectionType,
+                elementTypesByRole.get(collectionType.getRole()));
+    }
+
+    @Override
+    boolean isClassDefined(String qualifiedName) {
+        return constructorArities.containsKey(qualifiedName);
+    }
+
+    @Override
+    boolean isFieldDefined(String qualifiedClassName, String fieldName) {
+        return false;
+    }
+
+    @Override
+    boolean isConstructorDefined(String qualifiedClassName, List<Type> argumentTypes) {
+        Integer arity = constructorArities.get(qualifiedClassName);
+        return arity != null && arity == argumentTypes.size();
+    }
+
+    private class EntityPersister extends MockEntityPersister {
+        private EntityPersister(String entityName) {
+            super(entityName, null, StubSessionFactory.this);
+            initSubclassPersisters();
+        }
+
+        //the stub uses entity names as class names
+        @Override
+        String getEntityClassName() {
+            return getEntityName();
+        }
+
+        @Override
+        Collection<String> getEntitySuperclassNames() {
+            return superclassNames(getEntityName());
+        }
+
+        @Override
+        Type createPropertyType(String propertyPath) {
+            String[] path = propertyPath.split("\\.");
+            return findPropertyByPath(findProperty(getEntityName(), path[0]), path, 1);
+        }
+    }
+
+    private class CollectionPersister extends MockCollectionPersister {
+        private CollectionPersister(String role, CollectionType collectionType,
+                                    Type elementType) {
+            super(role, collectionType, elementType, StubSessionFactory.this);
+        }
+
+        @Override
+        Type getElementPropertyType(String propertyPath) {
+            Type elementType = getElementType();
+            if (elementType.isEntityType()) {
+                return getElementPersister().getPropertyType(propertyPath);
+            }
+            else {
+                return findPropertyByPath(elementType, propertyPath.split("\\."), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.hibernate.query.validator;
+
+import antlr.RecognitionException;
+import antlr.collections.AST;
+import org.hibernate.QueryException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singleton;
+
+/**
+ * Measures the throughput of each phase of query validation
+ * against the stub metamodel of {@link StubSessionFactory}.
+ * Run it using {@code gradle jmh}, which also reports the
+ * allocation rate using {@code -prof gc}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+
+    private static final Map<String, String> QUERIES = new HashMap<>();
+    static {
+        QUERIES.put("simple",
+                "from Person p where p.name = :name");
+        QUERIES.put("joins",
+                "select p.name, a.city, pr.name from Purchase pu " +
+                "join pu.customer p join p.pastAddresses a " +
+                "join pu.lines l join l.product pr " +
+                "where a.country.code = 'ES' and pr.price > 100 " +
+                "and p.address.city = :name");
+        QUERIES.put("selectNew",
+                "select new bench.Summary(c.name, count(pu), sum(l.quantity)) " +
+                "from Purchase pu join pu.customer c join pu.lines l " +
+                "where c.name = :name group by c.name");
+        QUERIES.put("subquery",
+                "from Person p where p.name = :name and p.id in " +
+                "(select pu.customer.id from Purchase pu where pu.total > " +
+                "(select avg(x.total) from Purchase x))");
+        QUERIES.put("map",
+                "select key(c), value(c).name from Employee e join e.contacts c " +
+                "where key(c) like 'b%' and e.name = :name");
+        QUERIES.put("unknownProperty",
+                "from Person p where p.firstName = :name and p.address.town = 'x'");
+        QUERIES.put("syntaxError",
+                "select from Person p where p.name = :name order");
+    }
+
+    @Param({"simple", "joins", "selectNew", "subquery", "map",
+            "unknownProperty", "syntaxError"})
+    public String query;
+
+    private String hql;
+    private StubSessionFactory factory;
+    private final Set<Integer> setParameterLabels = new HashSet<>();
+    private final Set<String> setParameterNames = new HashSet<>();
+    private final CountingHandler handler = new CountingHandler();
+
+    @Setup
+    public void setup() {
+        hql = QUERIES.get(query);
+        factory = new StubSessionFactory();
+        factory.setFunctionWhitelist(singleton("stddev"));
+    }
+
+    /**
+     * The parser alone, reading the query through the same
+     * per-thread lexer input as {@link #validate()}.
+     */
+    @Benchmark
+    public AST parse() throws Exception {
+        return Validation.parse(hql, handler);
+    }
+
+    /**
+     * Parsing and walking the query, against a factory
+     * whose persisters have already been built.
+     */
+    @Benchmark
+    public int validate() {
+        Validation.validate(hql, false, setParameterLabels, setParameterNames,
+                handler, factory);
+        return handler.count;
+    }
+
+    /**
+     * Like {@link #validate()}, but also checks the
+     * parameter bindings.
+     */
+    @Benchmark
+    public int validateWithParameters() {
+        setParameterNames.add("name");
+        Validation.validate(hql, true, setParameterLabels, setParameterNames,
+                handler, factory);
+        return handler.count;
+    }
+
+    /**
+     * Parsing and walking the query, against a new factory
+     * which must first build the persisters it needs.
+     */
+    @Benchmark
+    public int validateColdFactory() {
+        StubSessionFactory factory = new StubSessionFactory();
+        Validation.validate(hql, false, setParameterLabels, setParameterNames,
+                handler, factory);
+        return handler.count;
+    }
+
+    private static class CountingHandler implements Validation.Handler {
+        int count;
+
+        @Override
+        public int getErrorCount() {
+            return 0;
+        }
+
+        @Override
+        public void throwQueryException() throws QueryException {}
+
+        @Override
+        public void error(int start, int end, String message) {
+            count++;
+        }
+
+        @Override
+        public void warn(int start, int end, String message) {
+            count++;
+        }
+
+        @Override
+        public void reportError(RecognitionException e) {
+            count++;
+        }
+
+        @Override
+        public void reportError(String text) {
+            count++;
+        }
+
+        @Override
+        public void reportWarning(String text) {
+            count++;
+        }
+    }
+}
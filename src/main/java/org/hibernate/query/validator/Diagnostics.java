@@ -0,0 +1,125 @@
+package org.hibernate.query.validator;
+
+import antlr.RecognitionException;
+import org.hibernate.QueryException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hibernate.query.validator.ValidationCache.readString;
+import static org.hibernate.query.validator.ValidationCache.writeString;
+
+/**
+ * The diagnostics reported while validating a query,
+ * kept so that they may be replayed to another handler
+ * later on.
+ */
+final class Diagnostics implements Validation.Handler {
+
+    //kinds of diagnostic
+    private static final char ERROR = 'E';
+    private static final char WARNING = 'W';
+    private static final char RECOGNITION_ERROR = 'R';
+    private static final char MESSAGE_ERROR = 'S';
+    private static final char MESSAGE_WARNING = 'V';
+
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+
+    void replay(Validation.Handler handler) {
+        for (Diagnostic diagnostic : diagnostics) {
+            diagnostic.replay(handler);
+        }
+    }
+
+    @Override
+    public int getErrorCount() {
+        return 0;
+    }
+
+    @Override
+    public void throwQueryException() throws QueryException {}
+
+    @Override
+    public void error(int start, int end, String message) {
+        diagnostics.add(new Diagnostic(ERROR, start, end, message));
+    }
+
+    @Override
+    public void warn(int start, int end, String message) {
+        diagnostics.add(new Diagnostic(WARNING, start, end, message));
+    }
+
+    @Override
+    public void reportError(RecognitionException e) {
+        //start is the line, end is the column
+        diagnostics.add(new Diagnostic(RECOGNITION_ERROR,
+                e.getLine(), e.getColumn(), e.getMessage()));
+    }
+
+    @Override
+    public void reportError(String text) {
+        diagnostics.add(new Diagnostic(MESSAGE_ERROR, 0, 0, text));
+    }
+
+    @Override
+    public void reportWarning(String text) {
+        diagnostics.add(new Diagnostic(MESSAGE_WARNING, 0, 0, text));
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(diagnostics.size());
+        for (Diagnostic diagnostic : diagnostics) {
+            out.writeChar(diagnostic.kind);
+            out.writeInt(diagnostic.start);
+            out.writeInt(diagnostic.end);
+            writeString(out, diagnostic.message);
+        }
+    }
+
+    static Diagnostics read(DataInputStream in) throws IOException {
+        Diagnostics result = new Diagnostics();
+        for (int i = in.readInt(); i > 0; i--) {
+            result.diagnostics.add(new Diagnostic(in.readChar(),
+                    in.readInt(), in.readInt(), readString(in)));
+        }
+        return result;
+    }
+
+    private static final class Diagnostic {
+        private final char kind;
+        private final int start;
+        private final int end;
+        private final String message;
+
+        private Diagnostic(char kind, int start, int end, String message) {
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+            this.message = message;
+        }
+
+        void replay(Validation.Handler handler) {
+            switch (kind) {
+                case ERROR:
+                    handler.error(start, end, message);
+                    break;
+                case WARNING:
+                    handler.warn(start, end, message);
+                    break;
+                case RECOGNITION_ERROR:
+                    handler.reportError(new RecognitionException(message,
+                            null, start, end));
+                    break;
+                case MESSAGE_ERROR:
+                    handler.reportError(message);
+                    break;
+                case MESSAGE_WARNING:
+                    handler.reportWarning(message);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.hibernate.query.validator;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * A JVM-wide cache of the names of the SQL functions
+ * known to each Hibernate {@code Dialect}, since it's
+ * expensive to instantiate a dialect.
+ *
+ * The dialect is accessed reflectively, since, in the
+ * shadowed jar, it might be either a relocated or a
+ * non-relocated {@code Dialect}.
+ */
+final class DialectFunctions {
+
+    private DialectFunctions() {}
+
+    private static final ClassValue<Set<String>> FUNCTION_NAMES =
+            new ClassValue<Set<String>>() {
+                @Override
+                protected Set<String> computeValue(Class<?> dialectClass) {
+                    try {
+                        Object dialect = dialectClass.newInstance();
+                        Map<?,?> functions = (Map<?,?>)
+                                dialectClass.getMethod("getFunctions")
+                                        .invoke(dialect);
+                        @SuppressWarnings("unchecked")
+                        Set<String> names = (Set<String>) functions.keySet();
+                        return unmodifiableSet(new HashSet<>(names));
+                    }
+                    catch (ReflectiveOperationException | ClassCastException e) {
+                        throw new IllegalArgumentException(e);
+                    }
+                }
+            };
+
+    /**
+     * The names of the functions known to the dialect with
+     * the given class name.
+     *
+     * @return an immutable set of names
+     * @throws Exception if the dialect could not be loaded
+     *                   or instantiated
+     */
+    static Set<String> getFunctionNames(String dialectClassName)
+            throws Exception {
+        return FUNCTION_NAMES.get(Class.forName(dialectClassName));
+    }
+
+    /**
+     * Combine the function names listed explicitly in the
+     * whitelist with the names of the functions known to
+     * the dialect, avoiding a copy of the latter when the
+     * whitelist is empty.
+     */
+    static Set<String> union(Set<String> whitelist, Set<String> functionNames) {
+        if (whitelist.isEmpty()) {
+            return functionNames;
+        }
+        else if (functionNames.isEmpty()) {
+            return whitelist;
+        }
+        else {
+            Set<String> union = new HashSet<>(functionNames);
+            union.addAll(whitelist);
+            return union;
+        }
+    }
+}
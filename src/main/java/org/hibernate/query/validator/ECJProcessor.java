@@ -11,19 +11,20 @@ import org.eclipse.jdt.internal.compiler.impl.StringConstant;
 import org.eclipse.jdt.internal.compiler.lookup.*;
 import org.eclipse.jdt.internal.compiler.problem.ProblemSeverities;
 import org.hibernate.QueryException;
-import org.hibernate.dialect.Dialect;
 
 import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.TypeElement;
-import java.util.ArrayList;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.nio.CharBuffer;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 import static java.lang.Integer.parseInt;
-import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
 import static org.eclipse.jdt.core.compiler.CharOperation.charToString;
 import static org.eclipse.jdt.internal.compiler.util.Util.getLineNumber;
 import static org.eclipse.jdt.internal.compiler.util.Util.searchColumnNumber;
@@ -42,22 +43,52 @@ import static org.hibernate.query.validator.Validation.validate;
 //@SupportedAnnotationTypes(CHECK_HQL)
 public class ECJProcessor extends AbstractProcessor {
 
+    private ValidationCache cache;
+    private ValidationQueue queue;
+    //the files of the units already checked
+    private final Set<String> checkedUnits = new HashSet<>();
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        cache = ValidationCache.open(processingEnv.getOptions());
+        queue = ValidationQueue.open(processingEnv.getOptions());
+    }
+
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            queue.shutdown();
+            saveCache();
+            return true;
+        }
+        //new entities may be added in each round
+        cache.startRound();
         Compiler compiler = ((BaseProcessingEnvImpl) processingEnv).getCompiler();
         if (!roundEnv.getRootElements().isEmpty()) {
+            //one factory for the round, shared by every query
+            ECJSessionFactory factory = new ECJSessionFactory(compiler.unitsToProcess);
             for (CompilationUnitDeclaration unit : compiler.unitsToProcess) {
-                compiler.parser.getMethodBodies(unit);
-                checkHQL(unit, compiler);
+                //parsing the method bodies is expensive, so
+                //first look for @CheckHQL on the bindings, and
+                //never parse a unit more than once
+                if (unit != null
+                        && checkedUnits.add(charToString(unit.getFileName()))
+                        && isCheckable(unit)) {
+                    compiler.parser.getMethodBodies(unit);
+                    checkHQL(unit, compiler, factory);
+                }
             }
+            queue.drain();
         }
         return true;
     }
 
-    private void checkHQL(CompilationUnitDeclaration unit, Compiler compiler) {
+    private void checkHQL(CompilationUnitDeclaration unit, Compiler compiler,
+                          ECJSessionFactory factory) {
         for (TypeDeclaration type : unit.types) {
             if (isCheckable(type.binding, unit)) {
-                List<String> whitelist = getWhitelist(type.binding, unit, compiler);
+                Set<String> whitelist = getWhitelist(type.binding, unit, compiler);
                 type.traverse(new ASTVisitor() {
                     Set<Integer> setParameterLabels = new HashSet<>();
                     Set<String> setParameterNames = new HashSet<>();
@@ -125,9 +156,20 @@ public class ECJProcessor extends AbstractProcessor {
                     void check(StringLiteral stringLiteral, boolean inCreateQueryMethod) {
                         String hql = charToString(stringLiteral.source());
                         ErrorReporter handler = new ErrorReporter(stringLiteral, unit, compiler);
-                        validate(hql, inCreateQueryMethod && immediatelyCalled,
-                                setParameterLabels, setParameterNames, handler,
-                                new ECJSessionFactory(whitelist, handler, unit));
+                        boolean checkParams = inCreateQueryMethod && immediatelyCalled;
+                        //the parameters set at this call site
+                        Set<Integer> labels = new HashSet<>(setParameterLabels);
+                        Set<String> names = new HashSet<>(setParameterNames);
+                        if (checkParams) {
+                            setParameterLabels.clear();
+                            setParameterNames.clear();
+                        }
+                        queue.submit(handler, reporter -> {
+                            factory.setUnit(unit);
+                            factory.setFunctionWhitelist(whitelist);
+                            validate(hql, checkParams, labels, names,
+                                    reporter, factory, cache);
+                        });
                     }
 
                 }, unit.scope);
@@ -135,19 +177,49 @@ public class ECJProcessor extends AbstractProcessor {
         }
     }
 
+    private void saveCache() {
+        try {
+            cache.save();
+        }
+        catch (IOException e) {
+            processingEnv.getMessager()
+                    .printMessage(Diagnostic.Kind.WARNING,
+                            "could not save query validation cache: "
+                                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Is any type declared in the unit, or the package
+     * containing it, annotated {@code @CheckHQL}? Only the
+     * bindings are consulted, so the method bodies of the
+     * unit need not have been parsed.
+     */
+    private static boolean isCheckable(CompilationUnitDeclaration unit) {
+        if (unit.types != null && unit.scope != null) {
+            for (TypeDeclaration type : unit.types) {
+                if (type.binding != null && isCheckable(type.binding, unit)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private static boolean isCheckable(TypeBinding type, CompilationUnitDeclaration unit) {
         return getCheckAnnotation(type, unit)!=null;
     }
 
-    private static List<String> getWhitelist(TypeBinding type,
+    private static Set<String> getWhitelist(TypeBinding type,
                                              CompilationUnitDeclaration unit,
                                              Compiler compiler) {
         ElementValuePair[] members =
                 getCheckAnnotation(type, unit).getElementValuePairs();
         if (members==null || members.length==0) {
-            return emptyList();
+            return emptySet();
         }
-        List<String> names = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        Set<String> functionNames = emptySet();
         for (ElementValuePair pair: members) {
             Object value = pair.value;
             if (value instanceof Object[]) {
@@ -162,19 +234,16 @@ public class ECJProcessor extends AbstractProcessor {
             }
             else if (value instanceof BinaryTypeBinding) {
                 String name = qualifiedName((BinaryTypeBinding) value);
-                Dialect dialect;
                 try {
-                    dialect = (Dialect) Class.forName(name).newInstance();
+                    functionNames = DialectFunctions.getFunctionNames(name);
                 } catch (Exception e) {
                     //TODO: this error doesn't have location info!!
                     new ErrorReporter(null, unit, compiler)
                             .reportError("could not create dialect " + name);
-                    continue;
                 }
-                names.addAll(dialect.getFunctions().keySet());
             }
         }
-        return names;
+        return DialectFunctions.union(names, functionNames);
     }
 
     private static AnnotationBinding getCheckAnnotation(TypeBinding type,
@@ -229,10 +298,12 @@ public class ECJProcessor extends AbstractProcessor {
             int startPosition;
             int endPosition;
             if (node!=null) {
-                startPosition = node.sourceStart + offset;
+                char[] source = result.compilationUnit == null ? null :
+                        result.compilationUnit.getContents();
+                startPosition = position(source, offset);
                 endPosition = endOffset < 0 ?
                         node.sourceEnd - 1 :
-                        node.sourceStart + endOffset;
+                        position(source, endOffset);
             }
             else {
                 startPosition = 0;
@@ -256,6 +327,17 @@ public class ECJProcessor extends AbstractProcessor {
             compiler.problemReporter.record(problem, result, unit, true);
         }
 
+        /**
+         * The position in the source of the given offset in
+         * the query string.
+         */
+        private int position(char[] source, int offset) {
+            return source == null ?
+                    node.sourceStart + offset :
+                    LiteralPositions.position(CharBuffer.wrap(source),
+                            node.sourceStart, offset);
+        }
+
         @Override
         public void reportError(RecognitionException e) {
             report(ProblemSeverities.Error, e.getMessage(), e.getColumn(), -1);
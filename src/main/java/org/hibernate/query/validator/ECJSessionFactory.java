@@ -1,30 +1,79 @@
 package org.hibernate.query.validator;
 
 import org.eclipse.jdt.internal.compiler.ast.CompilationUnitDeclaration;
+import org.eclipse.jdt.internal.compiler.ast.TypeDeclaration;
 import org.eclipse.jdt.internal.compiler.classfmt.ClassFileConstants;
 import org.eclipse.jdt.internal.compiler.lookup.*;
-import org.hibernate.hql.internal.ast.ParseErrorHandler;
 import org.hibernate.type.*;
 
 import javax.persistence.AccessType;
 import java.beans.Introspector;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.util.Arrays.stream;
+import static java.util.Collections.emptyList;
 import static org.eclipse.jdt.core.compiler.CharOperation.charToString;
 import static org.hibernate.internal.util.StringHelper.*;
 import static org.hibernate.query.validator.HQLProcessor.jpa;
 
 class ECJSessionFactory extends MockSessionFactory {
 
-    private final CompilationUnitDeclaration unit;
+    private final ThreadLocal<CompilationUnitDeclaration> unit = new ThreadLocal<>();
 
-    ECJSessionFactory(List<String> functionWhitelist,
-                      ParseErrorHandler handler,
-                      CompilationUnitDeclaration unit) {
-        super(functionWhitelist, handler);
-        this.unit = unit;
+    //the entities declared in the units being compiled, by
+    //entity name, which, unlike the scope of a unit, is the
+    //same for every query in the round
+    private final Map<String, TypeBinding> entityClassesByName = new HashMap<>();
+
+    ECJSessionFactory(CompilationUnitDeclaration[] units) {
+        for (CompilationUnitDeclaration unit : units) {
+            if (unit != null && unit.types != null) {
+                indexEntityClasses(unit.types);
+            }
+        }
+    }
+
+    private void indexEntityClasses(TypeDeclaration[] types) {
+        for (TypeDeclaration type : types) {
+            if (type.binding != null && isEntity(type.binding)) {
+                entityClassesByName.putIfAbsent(getEntityName(type.binding), type.binding);
+            }
+            if (type.memberTypes != null) {
+                indexEntityClasses(type.memberTypes);
+            }
+        }
+    }
+
+    //the default access type of each class looked at so far
+    private final Map<TypeBinding, AccessType> defaultAccessTypes = new ConcurrentHashMap<>();
+
+    //the constructors of each class, and the class of each
+    //entity and basic type, used to check the arguments of
+    //a 'select new', and only accessed while holding the lock
+    private final Map<ReferenceBinding, Map<Integer, List<TypeBinding[]>>> constructorsByArity = new HashMap<>();
+    private final Map<String, TypeBinding> entityClasses = new HashMap<>();
+    //sadly there is no way to get the classname from a
+    //Hibernate Type without trying to load the class, so
+    //remember when it couldn't be loaded, or isn't known
+    private final Map<Type, Optional<TypeBinding>> basicTypeClasses = new HashMap<>();
+
+    private final PropertyIndex.Cache<TypeBinding, Binding> propertyIndexes =
+            new PropertyIndex.Cache<>(ECJSessionFactory::indexProperties);
+
+    /**
+     * Set the compilation unit whose scope is used to
+     * resolve class names, and the names of entities not
+     * declared in the units being compiled, for queries
+     * checked by the current thread.
+     */
+    void setUnit(CompilationUnitDeclaration unit) {
+        this.unit.set(unit);
     }
 
     @Override
@@ -57,9 +106,9 @@ class ECJSessionFactory extends MockSessionFactory {
         }
     }
 
-    private static Binding findPropertyByPath(TypeBinding type,
-                                             String propertyPath,
-                                             AccessType defaultAccessType) {
+    private Binding findPropertyByPath(TypeBinding type,
+                                       String propertyPath,
+                                       AccessType defaultAccessType) {
         return stream(split(".", propertyPath))
                 .reduce((Binding) type,
                         (symbol, segment) -> symbol==null ? null :
@@ -68,48 +117,71 @@ class ECJSessionFactory extends MockSessionFactory {
                         (last, current) -> current);
     }
 
-    static Type propertyType(Binding member,
-                             String entityName, String path,
-                             AccessType defaultAccessType) {
+    Type propertyType(Binding member,
+                      String entityName, String path,
+                      AccessType defaultAccessType) {
+        return propertyType(member, mappingKind(member),
+                entityName, path, defaultAccessType);
+    }
+
+    private Type propertyType(Binding member, PropertyIndex.Kind kind,
+                              String entityName, String path,
+                              AccessType defaultAccessType) {
         TypeBinding memberType = getMemberType(member);
+        switch (kind) {
+            case EMBEDDED:
+                return componentType(memberType, defaultAccessType,
+                        () -> new CompositeCustomType(
+                                new Component(this, memberType,
+                                        entityName, path, defaultAccessType)) {
+                            @Override
+                            public String getName() {
+                                return simpleName(memberType);
+                            }
+                        });
+            case TO_ONE:
+                String targetEntity = getToOneTargetEntity(member);
+                return typeHelper.entity(targetEntity);
+            case TO_MANY:
+            case ELEMENT_COLLECTION:
+                return collectionType(memberType, qualify(entityName, path));
+            default:
+                Type result = typeResolver.basic(qualifiedName(memberType));
+                return result == null ? UNKNOWN_TYPE : result;
+        }
+    }
+
+    private static PropertyIndex.Kind mappingKind(Binding member) {
         if (isEmbeddedProperty(member)) {
-            return new CompositeCustomType(
-                    new Component(memberType,
-                            entityName, path, defaultAccessType)) {
-                @Override
-                public String getName() {
-                    return simpleName(memberType);
-                }
-            };
+            return PropertyIndex.Kind.EMBEDDED;
         }
         else if (isToOneAssociation(member)) {
-            String targetEntity = getToOneTargetEntity(member);
-            return typeHelper.entity(targetEntity);
+            return PropertyIndex.Kind.TO_ONE;
         }
         else if (isToManyAssociation(member)) {
-            return collectionType(memberType, qualify(entityName, path));
+            return PropertyIndex.Kind.TO_MANY;
         }
         else if (isElementCollectionProperty(member)) {
-            return collectionType(memberType, qualify(entityName,path));
+            return PropertyIndex.Kind.ELEMENT_COLLECTION;
         }
         else {
-            Type result = typeResolver.basic(qualifiedName(memberType));
-            return result == null ? UNKNOWN_TYPE : result;
+            return PropertyIndex.Kind.BASIC;
         }
     }
 
-    private static Type elementCollectionElementType(TypeBinding elementType,
-                                                     String role, String path,
-                                                     AccessType defaultAccessType) {
+    private Type elementCollectionElementType(TypeBinding elementType,
+                                              String role, String path,
+                                              AccessType defaultAccessType) {
         if (isEmbeddableType(elementType)) {
-            return new CompositeCustomType(
-                    new Component(elementType,
-                            role, path, defaultAccessType)) {
-                @Override
-                public String getName() {
-                    return simpleName(elementType);
-                }
-            };
+            return componentType(elementType, defaultAccessType,
+                    () -> new CompositeCustomType(
+                            new Component(this, elementType,
+                                    role, path, defaultAccessType)) {
+                        @Override
+                        public String getName() {
+                            return simpleName(elementType);
+                        }
+                    });
         }
         else {
             return typeResolver.basic(qualifiedName(elementType));
@@ -126,7 +198,7 @@ class ECJSessionFactory extends MockSessionFactory {
         private Type[] propertyTypes;
         TypeBinding type;
 
-        Component(TypeBinding type,
+        Component(ECJSessionFactory factory, TypeBinding type,
                   String entityName, String path,
                   AccessType defaultAccessType) {
             this.type = type;
@@ -134,40 +206,16 @@ class ECJSessionFactory extends MockSessionFactory {
             List<String> names = new ArrayList<>();
             List<Type> types = new ArrayList<>();
 
-            while (type instanceof SourceTypeBinding) {
-                SourceTypeBinding classSymbol =
-                        (SourceTypeBinding) type;
-                if (isMappedClass(type)) { //ignore unmapped intervening classes
-                    AccessType accessType =
-                            getAccessType(type, defaultAccessType);
-                    for (MethodBinding member: classSymbol.methods()) {
-                        if (isPersistable(member, accessType)) {
-                            String name = propertyName(member);
-                            Type propertyType =
-                                    propertyType(member, entityName,
-                                            qualify(path, name),
-                                            defaultAccessType);
-                            if (propertyType != null) {
-                                names.add(name);
-                                types.add(propertyType);
-                            }
-                        }
-                    }
-                    for (FieldBinding member: classSymbol.fields()) {
-                        if (isPersistable(member, accessType)) {
-                            String name = propertyName(member);
-                            Type propertyType =
-                                    propertyType(member, entityName,
-                                            qualify(path, name),
-                                            defaultAccessType);
-                            if (propertyType != null) {
-                                names.add(name);
-                                types.add(propertyType);
-                            }
-                        }
-                    }
+            for (PropertyIndex.Property<Binding> property:
+                    factory.propertyIndex(type, defaultAccessType).properties()) {
+                Type propertyType =
+                        factory.propertyType(property.member, property.kind,
+                                entityName, qualify(path, property.name),
+                                defaultAccessType);
+                if (propertyType != null) {
+                    names.add(property.name);
+                    types.add(propertyType);
                 }
-                type = classSymbol.superclass;
             }
 
             propertyNames = names.toArray(new String[0]);
@@ -197,9 +245,21 @@ class ECJSessionFactory extends MockSessionFactory {
         }
 
         @Override
-        boolean isSubclassPersister(MockEntityPersister entityPersister) {
-            EntityPersister persister = (EntityPersister) entityPersister;
-            return persister.type.isCompatibleWith(type);
+        String getEntityClassName() {
+            return qualifiedName(type);
+        }
+
+        @Override
+        Collection<String> getEntitySuperclassNames() {
+            List<String> names = new ArrayList<>();
+            for (TypeBinding superclass = type;
+                 superclass instanceof ReferenceBinding;) {
+                superclass = ((ReferenceBinding) superclass).superclass();
+                if (superclass != null) {
+                    names.add(qualifiedName(superclass));
+                }
+            }
+            return names;
         }
 
         @Override
@@ -297,22 +357,41 @@ class ECJSessionFactory extends MockSessionFactory {
         return null;
     }
 
-    private static AccessType getDefaultAccessType(TypeBinding type) {
-        while (type instanceof SourceTypeBinding) {
+    /**
+     * The access type determined by the placement of the
+     * {@code @Id} annotation in the given class or in its
+     * nearest superclass which has one. It's remembered for
+     * each class along the way, so that it's found just once
+     * for a whole hierarchy.
+     */
+    private AccessType getDefaultAccessType(TypeBinding type) {
+        if (!(type instanceof SourceTypeBinding)) {
+            return AccessType.FIELD;
+        }
+        AccessType result = defaultAccessTypes.get(type);
+        if (result == null) {
             SourceTypeBinding classSymbol = (SourceTypeBinding) type;
-            for (Binding member: classSymbol.methods()) {
-                if (isId(member)) {
-                    return AccessType.PROPERTY;
-                }
+            result = idAccessType(classSymbol);
+            if (result == null) {
+                result = getDefaultAccessType(classSymbol.superclass);
             }
-            for (Binding member: classSymbol.fields()) {
-                if (isId(member)) {
-                    return AccessType.FIELD;
-                }
+            defaultAccessTypes.put(type, result);
+        }
+        return result;
+    }
+
+    private static AccessType idAccessType(SourceTypeBinding classSymbol) {
+        for (Binding member: classSymbol.methods()) {
+            if (isId(member)) {
+                return AccessType.PROPERTY;
+            }
+        }
+        for (Binding member: classSymbol.fields()) {
+            if (isId(member)) {
+                return AccessType.FIELD;
             }
-            type = classSymbol.superclass;
         }
-        return AccessType.FIELD;
+        return null;
     }
 
     private TypeBinding findEntityClass(String entityName) {
@@ -320,23 +399,38 @@ class ECJSessionFactory extends MockSessionFactory {
             TypeBinding type = findClassByQualifiedName(entityName);
             return isEntity(type) ? type : null;
         }
-        TypeBinding type = unit.scope.getType(entityName.toCharArray());
+        TypeBinding type = entityClassesByName.get(entityName);
+        if (type != null) {
+            return type;
+        }
+        //an entity from the classpath, which can only be
+        //found by its simple name through the imports of
+        //the unit, and is then assumed to be the same in
+        //every unit, since entity names are global
+        type = unit.get().scope.getType(entityName.toCharArray());
         return !missing(type) && isEntity(type)
                 && getEntityName(type).equals(entityName) ?
                 type : null;
-//        for (CompilationUnitDeclaration unit: compiler.unitsToProcess) {
-//            for (TypeDeclaration type: unit.types) {
-//                if (isEntity(type.binding)
-//                        && getEntityName(type.binding).equals(entityName)) {
-//                    return type;
-//                }
-//            }
-//        }
-//        return null;
     }
 
-    private static Binding findProperty(TypeBinding type, String propertyName,
-                                AccessType defaultAccessType) {
+    private Binding findProperty(TypeBinding type, String propertyName,
+                                 AccessType defaultAccessType) {
+        if (!(type instanceof SourceTypeBinding)) {
+            return null;
+        }
+        PropertyIndex.Property<Binding> property =
+                propertyIndex(type, defaultAccessType).get(propertyName);
+        return property == null ? null : property.member;
+    }
+
+    private PropertyIndex<Binding> propertyIndex(TypeBinding type,
+                                                 AccessType defaultAccessType) {
+        return propertyIndexes.get(type, defaultAccessType);
+    }
+
+    private static PropertyIndex<Binding> indexProperties(TypeBinding type,
+                                                          AccessType defaultAccessType) {
+        PropertyIndex<Binding> index = new PropertyIndex<>();
         //iterate up the superclass hierarchy
         while (type instanceof SourceTypeBinding) {
             SourceTypeBinding classSymbol = (SourceTypeBinding) type;
@@ -344,21 +438,21 @@ class ECJSessionFactory extends MockSessionFactory {
                 AccessType accessType =
                         getAccessType(type, defaultAccessType);
                 for (MethodBinding member: classSymbol.methods()) {
-                    if (isPersistable(member, accessType)
-                            && propertyName.equals(propertyName(member))) {
-                        return member;
+                    if (isPersistable(member, accessType)) {
+                        index.add(propertyName(member), member,
+                                accessType, mappingKind(member));
                     }
                 }
                 for (FieldBinding member: classSymbol.fields()) {
-                    if (isPersistable(member, accessType)
-                            && propertyName.equals(propertyName(member))) {
-                        return member;
+                    if (isPersistable(member, accessType)) {
+                        index.add(propertyName(member), member,
+                                accessType, mappingKind(member));
                     }
                 }
             }
             type = classSymbol.superclass;
         }
-        return null;
+        return index;
     }
 
     private static String propertyName(Binding symbol) {
@@ -608,65 +702,98 @@ class ECJSessionFactory extends MockSessionFactory {
     @Override
     boolean isConstructorDefined(String qualifiedClassName,
                                  List<Type> argumentTypes) {
-        SourceTypeBinding symbol = (SourceTypeBinding)
-                findClassByQualifiedName(qualifiedClassName);
-        if (symbol==null) return false;
-        for (MethodBinding method : symbol.methods()) {
-            if (method.isConstructor()
-                    && method.parameters.length == argumentTypes.size()) {
-                boolean argumentsCheckOut = true;
-                for (int i = 0; i < argumentTypes.size(); i++) {
-                    Type argType = argumentTypes.get(i);
-                    TypeBinding paramType = method.parameters[i];
-                    if (argType instanceof PrimitiveType
-                            && paramType.isPrimitiveType()) {
-                        Class primitive;
-                        try {
-                            primitive = ((PrimitiveType) argType).getPrimitiveClass();
-                        } catch (Exception e) {
-                            continue;
-                        }
-                        if (!toPrimitiveClass(paramType).equals(primitive)) {
-                            argumentsCheckOut = false;
-                            break;
-                        }
+        TypeBinding type = findClassByQualifiedName(qualifiedClassName);
+        if (!(type instanceof ReferenceBinding)) return false;
+        ReferenceBinding symbol = (ReferenceBinding) type;
+        for (TypeBinding[] params:
+                constructorsByArity
+                        .computeIfAbsent(symbol, ECJSessionFactory::indexConstructors)
+                        .getOrDefault(argumentTypes.size(), emptyList())) {
+            boolean argumentsCheckOut = true;
+            for (int i = 0; i < params.length; i++) {
+                Type argType = argumentTypes.get(i);
+                TypeBinding paramType = params[i];
+                if (argType instanceof PrimitiveType
+                        && paramType.isPrimitiveType()) {
+                    Class primitive;
+                    try {
+                        primitive = ((PrimitiveType) argType).getPrimitiveClass();
+                    } catch (Exception e) {
+                        continue;
                     }
-                    else {
-                        TypeBinding argTypeClass;
-                        if (argType instanceof EntityType) {
-                            String entityName = ((EntityType) argType).getAssociatedEntityName();
-                            argTypeClass = findEntityClass(entityName);
-                        } else if (argType instanceof CompositeCustomType) {
-                            argTypeClass = ((Component) ((CompositeCustomType) argType).getUserType()).type;
-                        } else if (argType instanceof BasicType) {
-                            String className;
-                            //sadly there is no way to get the classname
-                            //from a Hibernate Type without trying to load
-                            //the class!
-                            try {
-                                className = argType.getReturnedClass().getName();
-                            } catch (Exception e) {
-                                continue;
-                            }
-                            argTypeClass = findClassByQualifiedName(className);
-                        } else {
-                            //TODO: what other Hibernate Types do we
-                            //      need to consider here?
-                            continue;
-                        }
-                        if (argTypeClass != null
-                                && !argTypeClass.isCompatibleWith(paramType)) {
-                            argumentsCheckOut = false;
-                            break;
-                        }
+                    if (!toPrimitiveClass(paramType).equals(primitive)) {
+                        argumentsCheckOut = false;
+                        break;
+                    }
+                }
+                else {
+                    TypeBinding argTypeClass = argumentClass(argType);
+                    if (argTypeClass != null
+                            && !argTypeClass.isCompatibleWith(paramType)) {
+                        argumentsCheckOut = false;
+                        break;
                     }
                 }
-                if (argumentsCheckOut) return true; //matching constructor found!
             }
+            if (argumentsCheckOut) return true; //matching constructor found!
         }
         return false;
     }
 
+    /**
+     * The parameters of each constructor of the given class,
+     * grouped by number of parameters.
+     */
+    private static Map<Integer, List<TypeBinding[]>> indexConstructors(
+            ReferenceBinding type) {
+        Map<Integer, List<TypeBinding[]>> result = new HashMap<>();
+        for (MethodBinding method : type.methods()) {
+            if (method.isConstructor()) {
+                result.computeIfAbsent(method.parameters.length,
+                        arity -> new ArrayList<>())
+                        .add(method.parameters);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The class of a Hibernate type passed as an argument to
+     * a constructor, or null if it can't be determined, in
+     * which case the argument is assumed to fit.
+     */
+    private TypeBinding argumentClass(Type argType) {
+        if (argType instanceof EntityType) {
+            String entityName = ((EntityType) argType).getAssociatedEntityName();
+            TypeBinding result = entityClasses.get(entityName);
+            if (result == null) {
+                result = findEntityClass(entityName);
+                if (result != null) {
+                    entityClasses.put(entityName, result);
+                }
+            }
+            return result;
+        } else if (argType instanceof CompositeCustomType) {
+            return ((Component) ((CompositeCustomType) argType).getUserType()).type;
+        } else if (argType instanceof BasicType) {
+            return basicTypeClasses.computeIfAbsent(argType, this::basicTypeClass)
+                    .orElse(null);
+        } else {
+            //TODO: what other Hibernate Types do we
+            //      need to consider here?
+            return null;
+        }
+    }
+
+    private Optional<TypeBinding> basicTypeClass(Type argType) {
+        try {
+            return Optional.ofNullable(
+                    findClassByQualifiedName(argType.getReturnedClass().getName()));
+        } catch (Exception e) {
+            return Optional.empty();
+        }
+    }
+
     private static Class toPrimitiveClass(TypeBinding param) {
         switch (param.id) {
             case TypeIds.T_int:
@@ -694,7 +821,7 @@ class ECJSessionFactory extends MockSessionFactory {
         char[][] name = stream(path.split("\\."))
                 .map(String::toCharArray)
                 .toArray(char[][]::new);
-        TypeBinding type = unit.scope.getType(name, name.length);
+        TypeBinding type = unit.get().scope.getType(name, name.length);
         return missing(type) ? null : type;
 //        for (CompilationUnitDeclaration unit: compiler.unitsToProcess) {
 //            for (TypeDeclaration type: unit.types) {
@@ -0,0 +1,207 @@
+package org.hibernate.query.validator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reflective access to the members of the AST nodes and
+ * bindings of the Eclipse compiler, which the Eclipse
+ * processor can't link against. The method handle for
+ * each member of each class is looked up only once, so
+ * that the Eclipse processor doesn't pay for the dynamic
+ * dispatch of Groovy every time it visits a node.
+ *
+ * @see EclipseProcessor
+ * @see EclipseSessionFactory
+ */
+final class EclipseBindings {
+
+    private EclipseBindings() {}
+
+    //a placeholder for a member that doesn't exist
+    private static final MethodHandle MISSING =
+            MethodHandles.constant(Object.class, null);
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final ClassValue<Map<String, MethodHandle>> HANDLES =
+            new ClassValue<Map<String, MethodHandle>>() {
+                @Override
+                protected Map<String, MethodHandle> computeValue(Class<?> type) {
+                    return new ConcurrentHashMap<>();
+                }
+            };
+
+    private static MethodHandle field(Class<?> type, String name) {
+        return HANDLES.get(type).computeIfAbsent(name, n -> {
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                try {
+                    Field field = c.getDeclaredField(n);
+                    field.setAccessible(true);
+                    return LOOKUP.unreflectGetter(field)
+                            .asType(MethodType.methodType(Object.class, Object.class));
+                }
+                catch (NoSuchFieldException e) {
+                    //try the superclass
+                }
+                catch (Exception e) {
+                    break;
+                }
+            }
+            return MISSING;
+        });
+    }
+
+    private static MethodHandle method(Class<?> type, String name, int arity) {
+        return HANDLES.get(type).computeIfAbsent(name + '/' + arity, n -> {
+            for (Method method : type.getMethods()) {
+                if (method.getName().equals(name)
+                        && method.getParameterCount() == arity) {
+                    try {
+                        method.setAccessible(true);
+                        return LOOKUP.unreflect(method)
+                                .asType(MethodType.genericMethodType(arity + 1));
+                    }
+                    catch (Exception e) {
+                        break;
+                    }
+                }
+            }
+            return MISSING;
+        });
+    }
+
+    private static final ClassValue<String> KINDS =
+            new ClassValue<String>() {
+                @Override
+                protected String computeValue(Class<?> type) {
+                    return type.getSimpleName();
+                }
+            };
+
+    /**
+     * The kind of the given node or binding, that is, the
+     * simple name of its class.
+     */
+    static String kind(Object target) {
+        return KINDS.get(target.getClass());
+    }
+
+    /**
+     * A map from node class to handler, computed once per
+     * class from handlers keyed by simple class name. A
+     * class with no handler of its own inherits the handler
+     * of its nearest superclass that has one, or gets the
+     * given default.
+     */
+    static <H> ClassValue<H> dispatch(Map<String, H> handlers, H otherwise) {
+        return new ClassValue<H>() {
+            @Override
+            protected H computeValue(Class<?> type) {
+                for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                    H handler = handlers.get(c.getSimpleName());
+                    if (handler != null) {
+                        return handler;
+                    }
+                }
+                return otherwise;
+            }
+        };
+    }
+
+    private static IllegalArgumentException missing(Object target, String name) {
+        return new IllegalArgumentException(
+                target.getClass().getName() + " has no member " + name);
+    }
+
+    /**
+     * Does the given object have a field with the given name?
+     */
+    static boolean hasField(Object target, String name) {
+        return target != null && field(target.getClass(), name) != MISSING;
+    }
+
+    /**
+     * The value of the named field of the given object.
+     */
+    static Object read(Object target, String name) {
+        MethodHandle handle = field(target.getClass(), name);
+        if (handle == MISSING) {
+            throw missing(target, name);
+        }
+        try {
+            return (Object) handle.invokeExact(target);
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Call the named method of the given object, with no
+     * arguments.
+     */
+    static Object invoke(Object target, String name) {
+        MethodHandle handle = method(target.getClass(), name, 0);
+        if (handle == MISSING) {
+            throw missing(target, name);
+        }
+        try {
+            return (Object) handle.invokeExact(target);
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Call the named method of the given object, with one
+     * argument.
+     */
+    static Object invoke(Object target, String name, Object arg) {
+        MethodHandle handle = method(target.getClass(), name, 1);
+        if (handle == MISSING) {
+            throw missing(target, name);
+        }
+        try {
+            return (Object) handle.invokeExact(target, arg);
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Call the named method of the given object, with two
+     * arguments.
+     */
+    static Object invoke(Object target, String name, Object arg1, Object arg2) {
+        MethodHandle handle = method(target.getClass(), name, 2);
+        if (handle == MISSING) {
+            throw missing(target, name);
+        }
+        try {
+            return (Object) handle.invokeExact(target, arg1, arg2);
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
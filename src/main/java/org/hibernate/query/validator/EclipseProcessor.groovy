@@ -7,9 +7,12 @@ import javax.annotation.processing.AbstractProcessor
 import javax.annotation.processing.RoundEnvironment
 import javax.lang.model.SourceVersion
 import javax.lang.model.element.TypeElement
+import java.nio.CharBuffer
 
 import static java.lang.Integer.parseInt
-import static java.util.Collections.emptyList
+import static java.util.Collections.emptySet
+import static java.util.Collections.emptyMap
+import static org.hibernate.query.validator.EclipseBindings.*
 import static org.hibernate.query.validator.EclipseSessionFactory.*
 import static org.hibernate.query.validator.HQLProcessor.CHECK_HQL
 import static org.hibernate.query.validator.HQLProcessor.jpa
@@ -28,9 +31,13 @@ class EclipseProcessor extends AbstractProcessor {
     boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
         def compiler = processingEnv.getCompiler()
         if (!roundEnv.getRootElements().isEmpty()) {
+            //one factory for the round, shared by every query,
+            //and one cache, so a repeated query is parsed once
+            def factory = new EclipseSessionFactory(compiler.unitsToProcess)
+            def cache = ValidationCache.open(emptyMap())
             for (unit in compiler.unitsToProcess) {
                 compiler.parser.getMethodBodies(unit)
-                new Checker(unit, compiler).checkHQL()
+                new Checker(unit, compiler, factory, cache).checkHQL()
             }
         }
         return false
@@ -40,43 +47,39 @@ class EclipseProcessor extends AbstractProcessor {
         return getCheckAnnotation(type, unit)!=null
     }
 
-    private static List<String> getWhitelist(type, unit, compiler) {
-        def members = getCheckAnnotation(type, unit).getElementValuePairs()
+    private static Set<String> getWhitelist(type, unit, compiler) {
+        def members = invoke(getCheckAnnotation(type, unit), "getElementValuePairs")
         if (members==null || members.length==0) {
-            return emptyList()
+            return emptySet()
         }
-        List<String> names = new ArrayList<>()
+        Set<String> names = new HashSet<>()
+        Set<String> functionNames = emptySet()
         for (pair in members) {
-            def value = pair.value
+            def value = read(pair, "value")
             if (value instanceof Object[]) {
                 for (literal in (Object[]) value) {
-                    if (literal.class.simpleName == "StringConstant") {
-                        names.add(literal.stringValue())
+                    if (kind(literal) == "StringConstant") {
+                        names.add((String) invoke(literal, "stringValue"))
                     }
                 }
-            } else if (value.class.simpleName == "StringConstant") {
-                names.add(value.stringValue())
-            } else if (value.class.simpleName == "BinaryTypeBinding") {
+            } else if (kind(value) == "StringConstant") {
+                names.add((String) invoke(value, "stringValue"))
+            } else if (kind(value) == "BinaryTypeBinding") {
                 String name = qualifiedTypeName(value)
-                def dialect
                 try {
-                    dialect = Class.forName(name).newInstance()
-                    dialect.getFunctions()
+                    functionNames = DialectFunctions.getFunctionNames(name)
                 } catch (Exception e) {
                     try {
-                        dialect = Class.forName(shadow(name)).newInstance()
-                        dialect.getFunctions()
+                        functionNames = DialectFunctions.getFunctionNames(shadow(name))
                     } catch (Exception e2) {
                         //TODO: this error doesn't have location info!!
                         new ErrorReporter(null, unit, compiler)
                                 .reportError("could not create dialect " + name);
-                        continue
                     }
                 }
-                names.addAll(dialect.getFunctions().keySet())
             }
         }
-        return names
+        return DialectFunctions.union(names, functionNames)
     }
 
     private final static String ORG_HIBERNATE =
@@ -92,7 +95,7 @@ class EclipseProcessor extends AbstractProcessor {
     private static def getCheckAnnotation(type, unit) {
         def result = getAnnotation(type, CHECK_HQL)
         if (result!=null) return result
-        def packInfo = unit.scope.getType("package-info".toCharArray())
+        def packInfo = invoke(read(unit, "scope"), "getType", "package-info".toCharArray())
         return getAnnotation(packInfo, CHECK_HQL)
     }
 
@@ -109,169 +112,164 @@ class EclipseProcessor extends AbstractProcessor {
 
         private def unit
         private def compiler
-        private List<String> whitelist
+        private EclipseSessionFactory factory
+        private ValidationCache cache
 
-        Checker(unit, compiler) {
+        Checker(unit, compiler, EclipseSessionFactory factory, ValidationCache cache) {
             this.compiler = compiler
             this.unit = unit
+            this.factory = factory
+            this.cache = cache
         }
 
         void checkHQL() {
-            for (type in unit.types) {
-                if (isCheckable(type.binding, unit)) {
-                    whitelist = getWhitelist(type.binding, unit, compiler)
-                    type.annotations.each { annotation ->
-                        switch (qualifiedTypeName(annotation.resolvedType)) {
-                            case jpa("NamedQuery"):
-                                annotation.memberValuePairs.each { pair ->
-                                    if (simpleVariableName(pair) == "query") {
-                                        validateArgument(pair.value, false)
-                                    }
-                                }
-                                break
-                            case jpa("NamedQueries"):
-                                annotation.memberValue.expressions.each { ann ->
-                                    ann.memberValuePairs.each { pair ->
-                                        if (simpleVariableName(pair) == "query") {
-                                            validateArgument(pair.value, false)
+            def types = read(unit, "types")
+            if (types == null) return
+            for (type in (Object[]) types) {
+                def binding = read(type, "binding")
+                if (isCheckable(binding, unit)) {
+                    factory.setUnit(unit)
+                    factory.setFunctionWhitelist(getWhitelist(binding, unit, compiler))
+                    def annotations = read(type, "annotations")
+                    if (annotations != null) {
+                        for (annotation in (Object[]) annotations) {
+                            switch (qualifiedTypeName(read(annotation, "resolvedType"))) {
+                                case jpa("NamedQuery"):
+                                    validateNamedQuery(annotation)
+                                    break
+                                case jpa("NamedQueries"):
+                                    def value = hasField(annotation, "memberValue") ?
+                                            read(annotation, "memberValue") : null
+                                    if (hasField(value, "expressions")) {
+                                        for (ann in (Object[]) read(value, "expressions")) {
+                                            validateNamedQuery(ann)
                                         }
                                     }
-                                }
-                                break
+                                    break
+                            }
                         }
                     }
-                    type.methods.each { method ->
-                        validateStatements(method.statements)
+                    def methods = read(type, "methods")
+                    if (methods != null) {
+                        for (method in (Object[]) methods) {
+                            validateStatements(read(method, "statements"))
+                        }
+                    }
+                }
+            }
+        }
+
+        private void validateNamedQuery(annotation) {
+            for (pair in (Object[]) invoke(annotation, "memberValuePairs")) {
+                if (simpleVariableName(pair) == "query") {
+                    validateArgument(read(pair, "value"), false)
+                }
+            }
+        }
+
+        //the handler for each kind of node, keyed by the
+        //simple name of the node class or of a superclass
+        private static final ClassValue<Closure> HANDLERS = dispatch([
+                "MessageSend"                : { Checker checker, node -> checker.validateMessageSend(node) },
+                "AbstractVariableDeclaration": children("initialization"),
+                "AssertStatement"            : children("assertExpression"),
+                "Block"                      : children("statements"),
+                "SwitchStatement"            : children("expression", "statements"),
+                "ForStatement"               : children("action"),
+                "ForeachStatement"           : children("collection", "action"),
+                "DoStatement"                : children("condition", "action"),
+                "WhileStatement"             : children("condition", "action"),
+                "IfStatement"                : children("condition", "thenStatement", "elseStatement"),
+                "TryStatement"               : children("tryBlock", "catchBlocks", "finallyBlock"),
+                "SynchronizedStatement"      : children("expression", "block"),
+                "BinaryExpression"           : children("left", "right"),
+                "UnaryExpression"            : children("expression"),
+                "CastExpression"             : children("expression"),
+                "InstanceOfExpression"       : children("expression"),
+                "ConditionalExpression"      : children("condition", "valueIfTrue", "valueIfFalse"),
+                "LambdaExpression"           : children("body"),
+                "ArrayInitializer"           : children("expressions"),
+                "ArrayAllocationExpression"  : children("initializer"),
+                "Assignment"                 : children("lhs", "expression"),
+                "AllocationExpression"       : children("arguments"),
+                "ReturnStatement"            : children("expression"),
+                "ThrowStatement"             : children("exception"),
+                "LabeledStatement"           : children("statement"),
+        ] as Map<String, Closure>, null)
+
+        private static Closure children(String... names) {
+            return { Checker checker, node ->
+                for (name in names) {
+                    def child = read(node, name)
+                    if (child instanceof Object[]) {
+                        checker.validateStatements(child)
+                    } else {
+                        checker.validateStatement(child)
                     }
                 }
             }
         }
 
         private void validateStatements(statements) {
-            statements.each { statement -> validateStatement(statement) }
+            if (statements != null) {
+                for (statement in (Object[]) statements) {
+                    validateStatement(statement)
+                }
+            }
         }
 
         private void validateStatement(statement) {
-            if (statement != null) switch (statement.class.simpleName) {
-                case "MessageSend":
-                    boolean ic = immediatelyCalled
-                    switch (simpleMethodName(statement)) {
-                        case "getResultList":
-                        case "getSingleResult":
-                            immediatelyCalled = true
-                            break
-                        case "createQuery":
-                            statement.arguments.each { arg ->
-                                if (arg.class.simpleName == "StringLiteral") {
-                                    validateArgument(arg, true)
-                                }
-                            }
-                            break
-                        case "setParameter":
-                            def arg = statement.arguments.first()
-                            switch (arg.class.simpleName) {
-                                case "IntLiteral":
-                                    setParameterLabels.add(parseInt(new String((char[])arg.source())))
-                                    break
-                                case "StringLiteral":
-                                    setParameterNames.add(new String((char[])arg.source()))
-                                    break
+            if (statement != null) {
+                Closure handler = HANDLERS.get(statement.getClass())
+                if (handler != null) {
+                    handler.call(this, statement)
+                }
+            }
+        }
+
+        private void validateMessageSend(statement) {
+            boolean ic = immediatelyCalled
+            def arguments = read(statement, "arguments")
+            switch (simpleMethodName(statement)) {
+                case "getResultList":
+                case "getSingleResult":
+                    immediatelyCalled = true
+                    break
+                case "createQuery":
+                    if (arguments != null) {
+                        for (arg in (Object[]) arguments) {
+                            if (kind(arg) == "StringLiteral") {
+                                validateArgument(arg, true)
                             }
-                            break
+                        }
                     }
-                    validateStatement(statement.receiver)
-                    setParameterLabels.clear()
-                    setParameterNames.clear()
-                    immediatelyCalled = ic
-                    validateStatements(statement.arguments)
                     break
-                case "AbstractVariableDeclaration":
-                    validateStatement(statement.initialization)
-                    break
-                case "AssertStatement":
-                    validateStatement(statement.assertExpression)
-                    break
-                case "Block":
-                    validateStatements(statement.statements)
-                    break
-                case "SwitchStatement":
-                    validateStatement(statement.expression)
-                    validateStatements(statement.statements)
-                    break
-                case "ForStatement":
-                    validateStatement(statement.action)
-                    break
-                case "ForeachStatement":
-                    validateStatement(statement.collection)
-                    validateStatement(statement.action)
-                    break
-                case "DoStatement":
-                case "WhileStatement":
-                    validateStatement(statement.condition)
-                    validateStatement(statement.action)
-                    break
-                case "IfStatement":
-                    validateStatement(statement.condition)
-                    validateStatement(statement.thenStatement)
-                    validateStatement(statement.elseStatement)
-                    break
-                case "TryStatement":
-                    validateStatement(statement.tryBlock)
-                    validateStatements(statement.catchBlocks)
-                    validateStatement(statement.finallyBlock)
-                    break
-                case "SynchronizedStatement":
-                    validateStatement(statement.expression)
-                    validateStatement(statement.block)
-                    break
-                case "BinaryExpression":
-                    validateStatement(statement.left)
-                    validateStatement(statement.right)
-                    break
-                case "UnaryExpression":
-                case "CastExpression":
-                case "InstanceOfExpression":
-                    validateStatement(statement.expression)
-                    break
-                case "ConditionalExpression":
-                    validateStatement(statement.condition)
-                    validateStatement(statement.valueIfTrue)
-                    validateStatement(statement.valueIfFalse)
-                    break
-                case "LambdaExpression":
-                    validateStatement(statement.body)
-                    break
-                case "ArrayInitializer":
-                    validateStatements(statement.expressions)
-                    break
-                case "ArrayAllocationExpression":
-                    validateStatements(statement.initializer)
-                    break
-                case "Assignment":
-                    validateStatement(statement.lhs)
-                    validateStatement(statement.expression)
-                    break
-                case "AllocationExpression":
-                    validateStatements(statement.arguments)
-                    break
-                case "ReturnStatement":
-                    validateStatement(statement.expression)
-                    break
-                case "ThrowStatement":
-                    validateStatement(statement.exception)
-                    break
-                case "LabeledStatement":
-                    validateStatement(statement.statement)
+                case "setParameter":
+                    if (arguments != null) {
+                        def arg = ((Object[]) arguments)[0]
+                        switch (kind(arg)) {
+                            case "IntLiteral":
+                                setParameterLabels.add(parseInt(new String((char[]) invoke(arg, "source"))))
+                                break
+                            case "StringLiteral":
+                                setParameterNames.add(new String((char[]) invoke(arg, "source")))
+                                break
+                        }
+                    }
                     break
             }
+            validateStatement(read(statement, "receiver"))
+            setParameterLabels.clear()
+            setParameterNames.clear()
+            immediatelyCalled = ic
+            validateStatements(arguments)
         }
 
         void validateArgument(arg, boolean inCreateQueryMethod) {
-            String hql = new String((char[]) arg.source())
+            String hql = new String((char[]) invoke(arg, "source"))
             ErrorReporter handler = new ErrorReporter(arg, unit, compiler)
             validate(hql, inCreateQueryMethod && immediatelyCalled,
-                    setParameterLabels, setParameterNames, handler,
-                    new EclipseSessionFactory(whitelist, handler, unit))
+                    setParameterLabels, setParameterNames, handler, factory, cache)
         }
 
     }
@@ -313,10 +311,11 @@ class EclipseProcessor extends AbstractProcessor {
             int startPosition
             int endPosition
             if (node!=null) {
-                startPosition = node.sourceStart + offset
+                char[] source = result.compilationUnit?.getContents()
+                startPosition = position(source, offset)
                 endPosition = endOffset < 0 ?
                         node.sourceEnd - 1 :
-                        node.sourceStart + endOffset
+                        position(source, endOffset)
             }
             else {
                 startPosition = 0
@@ -336,6 +335,17 @@ class EclipseProcessor extends AbstractProcessor {
             compiler.problemReporter.record(problem, result, unit, true)
         }
 
+        /**
+         * The position in the source of the given offset in
+         * the query string.
+         */
+        private int position(char[] source, int offset) {
+            return source == null ?
+                    node.sourceStart + offset :
+                    LiteralPositions.position(CharBuffer.wrap(source),
+                            node.sourceStart, offset)
+        }
+
         @Override
         void reportError(RecognitionException e) {
             report(1, e.getMessage(), e.getColumn(), -1)
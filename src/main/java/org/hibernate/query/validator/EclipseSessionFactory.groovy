@@ -1,29 +1,65 @@
 package org.hibernate.query.validator
 
-import org.hibernate.hql.internal.ast.ParseErrorHandler
 import org.hibernate.type.*
 
 import javax.persistence.AccessType
 import java.beans.Introspector
+import java.util.concurrent.ConcurrentHashMap
 
 import static java.util.Arrays.stream
 import static org.hibernate.internal.util.StringHelper.*
+import static org.hibernate.query.validator.EclipseBindings.*
 import static org.hibernate.query.validator.HQLProcessor.jpa
 
 class EclipseSessionFactory extends MockSessionFactory {
 
-    final def unit
+    def unit
 
-    EclipseSessionFactory(List<String> functionWhitelist,
-                          ParseErrorHandler handler, unit) {
-        super(functionWhitelist, handler)
+    //the entities declared in the units being compiled, by
+    //entity name, which, unlike the scope of a unit, is the
+    //same for every query in the round
+    private final Map<String, Object> entityClassesByName = new HashMap<>()
+
+    EclipseSessionFactory(units) {
+        for (compilationUnit in (Object[]) units) {
+            def types = compilationUnit == null ? null :
+                    read(compilationUnit, "types")
+            if (types != null) {
+                indexEntityClasses((Object[]) types)
+            }
+        }
+    }
+
+    private void indexEntityClasses(Object[] types) {
+        for (type in types) {
+            def binding = read(type, "binding")
+            if (binding != null && isEntity(binding)) {
+                entityClassesByName.putIfAbsent(getEntityName(binding), binding)
+            }
+            def memberTypes = read(type, "memberTypes")
+            if (memberTypes != null) {
+                indexEntityClasses((Object[]) memberTypes)
+            }
+        }
+    }
+
+    //the default access type of each class looked at so far
+    private final Map<Object, AccessType> defaultAccessTypes = new ConcurrentHashMap<>()
+
+    /**
+     * Set the compilation unit whose scope is used to
+     * resolve class names, and the names of entities not
+     * declared in the units being compiled.
+     */
+    void setUnit(unit) {
         this.unit = unit
     }
 
     @Override
     MockEntityPersister createMockEntityPersister(String entityName) {
         def type = findEntityClass(entityName)
-        return type == null ? null : new EntityPersister(entityName, type)
+        return type == null ? null :
+                new EntityPersister(entityName, type, getDefaultAccessType(type))
     }
 
     @Override
@@ -59,17 +95,19 @@ class EclipseSessionFactory extends MockSessionFactory {
         }
     }
 
-    static Type propertyType(member,
+    static Type propertyType(EclipseSessionFactory factory, member,
                              String entityName, String path,
                              AccessType defaultAccessType) {
         def memberType = getMemberType(member)
         if (isEmbeddedProperty(member)) {
-            return new CompositeCustomType(
-                    new Component(memberType, entityName,
-                            path, defaultAccessType)) {
-                @Override
-                String getName() {
-                    return simpleTypeName(memberType)
+            return factory.componentType(memberType, defaultAccessType) {
+                new CompositeCustomType(
+                        new Component(factory, memberType, entityName,
+                                path, defaultAccessType)) {
+                    @Override
+                    String getName() {
+                        return simpleTypeName(memberType)
+                    }
                 }
             }
         } else if (isToOneAssociation(member)) {
@@ -85,16 +123,19 @@ class EclipseSessionFactory extends MockSessionFactory {
         }
     }
 
-    private static Type elementCollectionElementType(elementType,
+    private static Type elementCollectionElementType(EclipseSessionFactory factory,
+                                                     elementType,
                                                      String role, String path,
                                                      AccessType defaultAccessType) {
         if (isEmbeddableType(elementType)) {
-            return new CompositeCustomType(
-                    new Component(elementType,
-                            role, path, defaultAccessType)) {
-                @Override
-                String getName() {
-                    return simpleTypeName(elementType)
+            return factory.componentType(elementType, defaultAccessType) {
+                new CompositeCustomType(
+                        new Component(factory, elementType,
+                                role, path, defaultAccessType)) {
+                    @Override
+                    String getName() {
+                        return simpleTypeName(elementType)
+                    }
                 }
             }
         } else {
@@ -103,7 +144,7 @@ class EclipseSessionFactory extends MockSessionFactory {
     }
 
     private static CollectionType collectionType(type, String role) {
-        return MockSessionFactory.createCollectionType(role, simpleTypeName(type.actualType()))
+        return MockSessionFactory.createCollectionType(role, simpleTypeName(invoke(type, "actualType")))
     }
 
     private static class Component extends MockComponent {
@@ -111,23 +152,24 @@ class EclipseSessionFactory extends MockSessionFactory {
         private Type[] propertyTypes
         def type
 
-        Component(type, String entityName, String path,
+        Component(EclipseSessionFactory factory,
+                  type, String entityName, String path,
                   AccessType defaultAccessType) {
             this.type = type
 
             List<String> names = []
             List<Type> types = []
 
-            while (type != null && type.metaClass.hasProperty(type, "superclass")) {
+            while (type != null && hasField(type, "superclass")) {
                 def classSymbol = type
                 if (isMappedClass(type)) { //ignore unmapped intervening classes
                     AccessType accessType =
                             getAccessType(type, defaultAccessType)
-                    for (member in classSymbol.methods()) {
+                    for (member in (Object[]) invoke(classSymbol, "methods")) {
                         if (isPersistable(member, accessType)) {
                             String name = propertyName(member)
                             Type propertyType =
-                                    propertyType(member, entityName,
+                                    propertyType(factory, member, entityName,
                                             qualify(path, name),
                                             defaultAccessType)
                             if (propertyType != null) {
@@ -136,11 +178,11 @@ class EclipseSessionFactory extends MockSessionFactory {
                             }
                         }
                     }
-                    for (member in classSymbol.fields()) {
+                    for (member in (Object[]) invoke(classSymbol, "fields")) {
                         if (isPersistable(member, accessType)) {
                             String name = propertyName(member)
                             Type propertyType =
-                                    propertyType(member, entityName,
+                                    propertyType(factory, member, entityName,
                                             qualify(path, name),
                                             defaultAccessType)
                             if (propertyType != null) {
@@ -150,7 +192,7 @@ class EclipseSessionFactory extends MockSessionFactory {
                         }
                     }
                 }
-                type = classSymbol.superclass
+                type = read(classSymbol, "superclass")
             }
 
             propertyNames = names.toArray([])
@@ -172,18 +214,30 @@ class EclipseSessionFactory extends MockSessionFactory {
     private class EntityPersister extends MockEntityPersister {
         private final def typeDeclaration
 
-        private EntityPersister(String entityName, type) {
-            super(entityName, getDefaultAccessType(type),
+        private EntityPersister(String entityName, type,
+                                AccessType defaultAccessType) {
+            super(entityName, defaultAccessType,
                     EclipseSessionFactory.this)
             this.typeDeclaration = type
             initSubclassPersisters()
         }
 
         @Override
-        boolean isSubclassPersister(MockEntityPersister entityPersister) {
-            EntityPersister persister = (EntityPersister) entityPersister
-            //isSubtypeOf missing in Eclipse
-            return persister.typeDeclaration.isCompatibleWith(typeDeclaration)
+        String getEntityClassName() {
+            return qualifiedTypeName(typeDeclaration)
+        }
+
+        @Override
+        Collection<String> getEntitySuperclassNames() {
+            List<String> names = []
+            def type = typeDeclaration
+            while (hasField(type, "superclass")) {
+                type = read(type, "superclass")
+                if (type != null) {
+                    names.add(qualifiedTypeName(type))
+                }
+            }
+            return names
         }
 
         @Override
@@ -192,8 +246,8 @@ class EclipseSessionFactory extends MockSessionFactory {
                     findPropertyByPath(typeDeclaration, propertyPath,
                             defaultAccessType)
             return symbol == null ? null :
-                    propertyType(symbol, getEntityName(),
-                            propertyPath, defaultAccessType)
+                    propertyType(EclipseSessionFactory.this, symbol,
+                            getEntityName(), propertyPath, defaultAccessType)
         }
 
     }
@@ -223,8 +277,8 @@ class EclipseSessionFactory extends MockSessionFactory {
                                    String propertyPath,
                                    AccessType defaultAccessType) {
             super(role, collectionType,
-                    elementCollectionElementType(elementType, role,
-                            propertyPath, defaultAccessType),
+                    elementCollectionElementType(EclipseSessionFactory.this,
+                            elementType, role, propertyPath, defaultAccessType),
                     EclipseSessionFactory.this)
             this.elementType = elementType
             this.defaultAccessType = defaultAccessType
@@ -236,36 +290,36 @@ class EclipseSessionFactory extends MockSessionFactory {
                     findPropertyByPath(elementType, propertyPath,
                             defaultAccessType)
             return symbol == null ? null :
-                    propertyType(symbol, getOwnerEntityName(),
-                            propertyPath, defaultAccessType)
+                    propertyType(EclipseSessionFactory.this, symbol,
+                            getOwnerEntityName(), propertyPath, defaultAccessType)
         }
     }
 
     private static String simpleTypeName(type) {
-        return new String((char[]) type.sourceName())
+        return new String((char[]) invoke(type, "sourceName"))
     }
 
     static String simpleMethodName(binding) {
-        return new String((char[]) binding.selector)
+        return new String((char[]) read(binding, "selector"))
     }
 
     static String simpleVariableName(binding) {
-        return new String((char[]) binding.name)
+        return new String((char[]) read(binding, "name"))
     }
 
     static String qualifiedTypeName(type) {
-        return new String((char[]) type.qualifiedPackageName()) +
-                "." + new String((char[]) type.qualifiedSourceName())
+        return new String((char[]) invoke(type, "qualifiedPackageName")) +
+                "." + new String((char[]) invoke(type, "qualifiedSourceName"))
     }
 
     static String qualifiedMethodName(binding) {
-        return qualifiedTypeName(binding.declaringClass) +
-                "." + new String((char[]) binding.selector)
+        return qualifiedTypeName(read(binding, "declaringClass")) +
+                "." + new String((char[]) read(binding, "selector"))
     }
 
     static boolean hasAnnotation(annotations, String name) {
-        for (ann in annotations.getAnnotations()) {
-            if (qualifiedTypeName(ann.getAnnotationType()) == name) {
+        for (ann in (Object[]) invoke(annotations, "getAnnotations")) {
+            if (qualifiedTypeName(invoke(ann, "getAnnotationType")) == name) {
                 return true
             }
         }
@@ -273,8 +327,8 @@ class EclipseSessionFactory extends MockSessionFactory {
     }
 
     static def getAnnotation(annotations, String name) {
-        for (ann in annotations.getAnnotations()) {
-            if (qualifiedTypeName(ann.getAnnotationType()) == name) {
+        for (ann in (Object[]) invoke(annotations, "getAnnotations")) {
+            if (qualifiedTypeName(invoke(ann, "getAnnotationType")) == name) {
                 return ann
             }
         }
@@ -282,22 +336,40 @@ class EclipseSessionFactory extends MockSessionFactory {
     }
 
 
-    private static AccessType getDefaultAccessType(type) {
-        while (type != null && type.metaClass.hasProperty(type, "superclass")) {
-            def classSymbol = type
-            for (member in classSymbol.methods()) {
-                if (isId(member)) {
-                    return AccessType.PROPERTY
-                }
+    /**
+     * The access type determined by the placement of the
+     * {@code @Id} annotation in the given class or in its
+     * nearest superclass which has one. It's remembered for
+     * each class along the way, so that it's found just once
+     * for a whole hierarchy.
+     */
+    private AccessType getDefaultAccessType(type) {
+        if (type == null || !hasField(type, "superclass")) {
+            return AccessType.FIELD
+        }
+        AccessType result = defaultAccessTypes.get(type)
+        if (result == null) {
+            result = idAccessType(type)
+            if (result == null) {
+                result = getDefaultAccessType(read(type, "superclass"))
             }
-            for (member in classSymbol.fields()) {
-                if (isId(member)) {
-                    return AccessType.FIELD
-                }
+            defaultAccessTypes.put(type, result)
+        }
+        return result
+    }
+
+    private static AccessType idAccessType(classSymbol) {
+        for (member in (Object[]) invoke(classSymbol, "methods")) {
+            if (isId(member)) {
+                return AccessType.PROPERTY
             }
-            type = classSymbol.superclass
         }
-        return AccessType.FIELD
+        for (member in (Object[]) invoke(classSymbol, "fields")) {
+            if (isId(member)) {
+                return AccessType.FIELD
+            }
+        }
+        return null
     }
 
     private def findEntityClass(String entityName) {
@@ -305,7 +377,15 @@ class EclipseSessionFactory extends MockSessionFactory {
             def type = findClassByQualifiedName(entityName)
             return isEntity(type) ? type : null
         }
-        def type = unit.scope.getType(entityName.toCharArray())
+        def type = entityClassesByName.get(entityName)
+        if (type != null) {
+            return type
+        }
+        //an entity from the classpath, which can only be
+        //found by its simple name through the imports of
+        //the unit, and is then assumed to be the same in
+        //every unit, since entity names are global
+        type = invoke(read(unit, "scope"), "getType", entityName.toCharArray())
         return !missing(type) && isEntity(type) &&
                 getEntityName(type).equals(entityName) ?
                 type : null
@@ -314,31 +394,31 @@ class EclipseSessionFactory extends MockSessionFactory {
     private static def findProperty(type, String property,
                                     AccessType defaultAccessType) {
         //iterate up the superclass hierarchy
-        while (type != null && type.metaClass.hasProperty(type, "superclass")) {
+        while (type != null && hasField(type, "superclass")) {
             def classSymbol = type
             if (isMappedClass(type)) { //ignore unmapped intervening classes
                 AccessType accessType =
                         getAccessType(type, defaultAccessType)
-                for (member in classSymbol.methods()) {
+                for (member in (Object[]) invoke(classSymbol, "methods")) {
                     if (isPersistable(member, accessType) &&
                             property == propertyName(member)) {
                         return member
                     }
                 }
-                for (member in classSymbol.fields()) {
+                for (member in (Object[]) invoke(classSymbol, "fields")) {
                     if (isPersistable(member, accessType) &&
                             property == propertyName(member)) {
                         return member
                     }
                 }
             }
-            type = classSymbol.superclass
+            type = read(classSymbol, "superclass")
         }
         return null
     }
 
     private static String propertyName(def symbol) {
-        if (symbol.class.simpleName == "MethodBinding") {
+        if (kind(symbol) == "MethodBinding") {
             String name = simpleMethodName(symbol)
             if (name.startsWith("get")) {
                 name = name.substring(3)
@@ -346,7 +426,7 @@ class EclipseSessionFactory extends MockSessionFactory {
                 name = name.substring(2)
             }
             return Introspector.decapitalize(name)
-        } else if (symbol.class.simpleName == "FieldBinding") {
+        } else if (kind(symbol) == "FieldBinding") {
             return simpleVariableName(symbol)
         } else {
             return null
@@ -356,10 +436,10 @@ class EclipseSessionFactory extends MockSessionFactory {
     private static boolean isPersistable(member, AccessType accessType) {
         if (isStatic(member) || isTransient(member)) {
             return false
-        } else if (member.class.simpleName == "FieldBinding") {
+        } else if (kind(member) == "FieldBinding") {
             return accessType == AccessType.FIELD ||
                     hasAnnotation(member, jpa("Access"))
-        } else if (member.class.simpleName == "MethodBinding") {
+        } else if (kind(member) == "MethodBinding") {
             return isGetterMethod(member) &&
                     (accessType == AccessType.PROPERTY ||
                             hasAnnotation(member, jpa("Access")))
@@ -369,34 +449,34 @@ class EclipseSessionFactory extends MockSessionFactory {
     }
 
     private static boolean isGetterMethod(method) {
-        if (method.parameters.length != 0) {
+        if (((Object[]) read(method, "parameters")).length != 0) {
             return false
         }
         String methodName = simpleMethodName(method)
-        def returnType = method.returnType
-        return methodName.startsWith("get") && returnType.id != 6 ||
-                methodName.startsWith("is") && returnType.id == 5
+        def returnType = read(method, "returnType")
+        return methodName.startsWith("get") && read(returnType, "id") != 6 ||
+                methodName.startsWith("is") && read(returnType, "id") == 5
     }
 
     private static def getMemberType(binding) {
-        if (binding.class.simpleName == "MethodBinding") {
-            return binding.returnType
-        } else if (binding.class.simpleName == "FieldBinding") {
-            return binding.type
+        if (kind(binding) == "MethodBinding") {
+            return read(binding, "returnType")
+        } else if (kind(binding) == "FieldBinding") {
+            return read(binding, "type")
         } else {
             return binding
         }
     }
 
     private static boolean isStatic(member) {
-        if ((member.modifiers & 0x0008) != 0) {
+        if (((int) read(member, "modifiers") & 0x0008) != 0) {
             return true
         }
         return false
     }
 
     private static boolean isTransient(member) {
-        if ((member.modifiers & 0x0080) != 0) {
+        if (((int) read(member, "modifiers") & 0x0080) != 0) {
             return true
         }
         return hasAnnotation(member, jpa("Transient"))
@@ -443,8 +523,8 @@ class EclipseSessionFactory extends MockSessionFactory {
 
     private static def getCollectionElementType(property) {
         def memberType = getMemberType(property)
-        if (memberType.metaClass.hasProperty(memberType, "arguments")) {
-            def args = memberType.arguments
+        if (hasField(memberType, "arguments")) {
+            def args = read(memberType, "arguments")
             return args.length > 0 ? args[args.length - 1] : null
         }
         return null
@@ -452,9 +532,9 @@ class EclipseSessionFactory extends MockSessionFactory {
 
     private static Object getAnnotationMember(annotation,
                                               String memberName) {
-        for (pair in annotation.getElementValuePairs()) {
-            if (simpleMethodName(pair.binding) == memberName) {
-                return pair.value
+        for (pair in (Object[]) invoke(annotation, "getElementValuePairs")) {
+            if (simpleMethodName(read(pair, "binding")) == memberName) {
+                return read(pair, "value")
             }
         }
         return null
@@ -463,7 +543,7 @@ class EclipseSessionFactory extends MockSessionFactory {
     static String getToOneTargetEntity(property) {
         def annotation = toOneAnnotation(property)
         def classType = getAnnotationMember(annotation, "targetEntity")
-        return classType == null || classType.id == 6 ?
+        return classType == null || read(classType, "id") == 6 ?
                 //entity names are unqualified class names
                 simpleTypeName(getMemberType(property)) :
                 simpleTypeName(classType)
@@ -472,7 +552,7 @@ class EclipseSessionFactory extends MockSessionFactory {
     private static String getToManyTargetEntityName(property) {
         def annotation = toManyAnnotation(property)
         def classType = getAnnotationMember(annotation, "targetEntity")
-        return classType == null || classType.id == 6 ?
+        return classType == null || read(classType, "id") == 6 ?
                 //entity names are unqualified class names
                 simpleTypeName(getCollectionElementType(property)) :
                 simpleTypeName(classType)
@@ -482,7 +562,7 @@ class EclipseSessionFactory extends MockSessionFactory {
         def annotation = getAnnotation(property,
                 jpa("ElementCollection"))
         def classType = getAnnotationMember(annotation, "getElementCollectionClass")
-        return classType == null || classType.id == 6 ?
+        return classType == null || read(classType, "id") == 6 ?
                 getCollectionElementType(property) :
                 classType
     }
@@ -544,7 +624,7 @@ class EclipseSessionFactory extends MockSessionFactory {
     boolean isFieldDefined(String qualifiedClassName, String fieldName) {
         def type = findClassByQualifiedName(qualifiedClassName)
         if (type == null) return false
-        for (field in type.fields()) {
+        for (field in (Object[]) invoke(type, "fields")) {
             if (simpleVariableName(field) == fieldName) {
                 return true
             }
@@ -557,7 +637,7 @@ class EclipseSessionFactory extends MockSessionFactory {
                                  List<Type> argumentTypes) {
         def symbol = findClassByQualifiedName(qualifiedClassName)
         if (symbol == null) return false
-        for (method in symbol.methods()) {
+        for (method in (Object[]) invoke(symbol, "methods")) {
             if (method.isConstructor() &&
                     method.parameters.length == argumentTypes.size()) {
                 boolean argumentsCheckOut = true
@@ -645,8 +725,8 @@ class EclipseSessionFactory extends MockSessionFactory {
     }
 
     private static boolean missing(type) {
-        return type.class.simpleName == "MissingTypeBinding" ||
-                type.class.simpleName == "ProblemReferenceBinding"
+        return kind(type) == "MissingTypeBinding" ||
+                kind(type) == "ProblemReferenceBinding"
     }
 
 }
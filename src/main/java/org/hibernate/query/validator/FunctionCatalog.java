@@ -0,0 +1,155 @@
+package org.hibernate.query.validator;
+
+import org.hibernate.dialect.function.SQLFunction;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.joining;
+
+/**
+ * An immutable table of the SQL functions known to the
+ * dialect, the custom SQL functions, and the whitelisted
+ * function names, in a single open-addressed hash table
+ * with linear probing, so that resolving a function name
+ * neither allocates nor needs to lower-case the name.
+ *
+ * Function names are matched case-insensitively, just
+ * like in {@link org.hibernate.dialect.function.SQLFunctionRegistry},
+ * but whitelisted names are matched exactly, as they
+ * always have been.
+ */
+final class FunctionCatalog {
+
+    private final Set<String> whitelist;
+    private final String whitelistKey;
+
+    private final String[] names;
+    //null for a whitelisted name
+    private final SQLFunction[] functions;
+    private final int mask;
+
+    FunctionCatalog(Map<String, SQLFunction> dialectFunctions,
+                    Map<String, SQLFunction> customFunctions,
+                    Set<String> whitelist) {
+        this.whitelist = whitelist;
+        this.whitelistKey = digest(whitelist.stream().sorted().collect(joining(",")));
+        int size = dialectFunctions.size() + customFunctions.size() + whitelist.size();
+        //keep the load factor below one half
+        int capacity = Integer.highestOneBit(Math.max(size, 4) * 2) * 2;
+        names = new String[capacity];
+        functions = new SQLFunction[capacity];
+        mask = capacity - 1;
+        dialectFunctions.forEach(this::putFunction);
+        //a custom function overrides a dialect function
+        customFunctions.forEach(this::putFunction);
+        for (String name : whitelist) {
+            //a whitelisted name is never consulted when
+            //there is a function with the same name
+            if (indexOf(name, true) < 0) {
+                names[freeSlot(name)] = name;
+            }
+        }
+    }
+
+    private void putFunction(String name, SQLFunction function) {
+        int index = indexOf(name, true);
+        if (index < 0) {
+            index = freeSlot(name);
+            names[index] = name;
+        }
+        functions[index] = function;
+    }
+
+    private int freeSlot(String name) {
+        int index = hash(name) & mask;
+        while (names[index] != null) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * The slot holding the given function name, if it is
+     * a function, or the given whitelisted name, if it is
+     * not, or -1 if there is no such slot.
+     */
+    private int indexOf(String name, boolean function) {
+        int index = hash(name) & mask;
+        String entry;
+        while ((entry = names[index]) != null) {
+            if (function) {
+                if (functions[index] != null
+                        && entry.equalsIgnoreCase(name)) {
+                    return index;
+                }
+            }
+            else {
+                if (functions[index] == null
+                        && entry.equals(name)) {
+                    return index;
+                }
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    //a hash which agrees with equalsIgnoreCase()
+    private static int hash(String name) {
+        int hash = 0;
+        for (int i = 0, length = name.length(); i < length; i++) {
+            char ch = Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+            hash = 31 * hash + ch;
+        }
+        //spread the high bits, as in HashMap
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * The dialect or custom function with the given name,
+     * ignoring case, or null if there is none.
+     */
+    SQLFunction find(String name) {
+        int index = indexOf(name, true);
+        return index < 0 ? null : functions[index];
+    }
+
+    /**
+     * Is the given name in the whitelist?
+     */
+    boolean isWhitelisted(String name) {
+        return indexOf(name, false) >= 0;
+    }
+
+    Set<String> getWhitelist() {
+        return whitelist;
+    }
+
+    /**
+     * A digest of the whitelisted names, sorted and joined,
+     * computed once. The whitelist includes the functions of
+     * the dialect named by {@link CheckHQL#dialect()}, so the
+     * names themselves would make a long key for every query
+     * in the cache.
+     */
+    String getWhitelistKey() {
+        return whitelistKey;
+    }
+
+    private static String digest(String names) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(names.getBytes(UTF_8));
+            return new BigInteger(1, digest).toString(16);
+        }
+        catch (NoSuchAlgorithmException e) {
+            //every platform supports SHA-256
+            throw new AssertionError(e);
+        }
+    }
+}
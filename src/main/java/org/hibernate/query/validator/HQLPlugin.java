@@ -0,0 +1,148 @@
+package org.hibernate.query.validator;
+
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.Plugin;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.tools.javac.api.BasicJavacTask;
+import com.sun.tools.javac.comp.Todo;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Options;
+
+import javax.lang.model.element.TypeElement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Collections.emptySet;
+
+/**
+ * A `javac` plugin that validates HQL and JPQL queries as
+ * each class is analyzed, instead of in the rounds of
+ * annotation processing. Since the plugin sees attributed
+ * trees, it also validates queries written as concatenated
+ * constants. Enable it by passing `-Xplugin:HQLValidator`
+ * to `javac`.
+ *
+ * The processor options accepted by the {@link HQLProcessor}
+ * may be specified as usual, or as arguments of the plugin,
+ * in the form `option=value`.
+ *
+ * @see CheckHQL
+ */
+public class HQLPlugin implements Plugin, TaskListener {
+
+    static final String NAME = "HQLValidator";
+
+    //the kind of event which ends the compilation, which
+    //javac only reports since Java 9
+    private static final String COMPILATION = "COMPILATION";
+    private static final boolean COMPILATION_EVENTS = hasCompilationEvents();
+
+    private BasicJavacTask task;
+    private Context context;
+    private JavacChecker checker;
+    private boolean finished;
+    private final Set<TypeElement> checked = new HashSet<>();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void init(JavacTask task, String... args) {
+        this.task = (BasicJavacTask) task;
+        context = this.task.getContext();
+        Options options = Options.instance(context);
+        //tell the HQLProcessor not to validate the same queries
+        options.put(NAME, NAME);
+        Map<String, String> processorOptions = new HashMap<>();
+        for (String option : options.keySet()) {
+            if (option.startsWith("-A")) {
+                addOption(processorOptions, option.substring(2));
+            }
+        }
+        for (String arg : args) {
+            addOption(processorOptions, arg);
+        }
+        checker = new JavacChecker(processorOptions);
+        checker.startRound(context, emptySet());
+        task.addTaskListener(this);
+    }
+
+    private static void addOption(Map<String, String> options, String option) {
+        int loc = option.indexOf('=');
+        if (loc < 0) {
+            options.put(option, null);
+        }
+        else {
+            options.put(option.substring(0, loc), option.substring(loc + 1));
+        }
+    }
+
+    /**
+     * Is the plugin enabled in the given compilation?
+     */
+    static boolean isEnabled(Context context) {
+        return Options.instance(context).isSet(NAME);
+    }
+
+    @Override
+    public void started(TaskEvent event) {}
+
+    private static boolean hasCompilationEvents() {
+        for (TaskEvent.Kind kind : TaskEvent.Kind.values()) {
+            if (kind.name().equals(COMPILATION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void finished(TaskEvent event) {
+        if (event.getKind() == TaskEvent.Kind.ANALYZE) {
+            //annotation processing leaves the compiler with a
+            //new context, with new symbols
+            if (task.getContext() != context) {
+                checker.drain();
+                context = task.getContext();
+                checker.startRound(context, emptySet());
+            }
+            TypeElement element = event.getTypeElement();
+            if (element != null && checked.add(element)) {
+                checker.checkHQL(element);
+            }
+            //validate the queries of every class analyzed so
+            //far in one batch, once nothing is left to analyze
+            if (Todo.instance(context).isEmpty()) {
+                checker.drain();
+                if (!COMPILATION_EVENTS) {
+                    //on Java 8 there is no better moment, but a
+                    //class analyzed later, under an unusual
+                    //compile policy, is still validated, just
+                    //not remembered for the next build
+                    finish();
+                }
+            }
+        }
+        else if (event.getKind().name().equals(COMPILATION)) {
+            finish();
+        }
+    }
+
+    /**
+     * Validate whatever is left, shut down the worker
+     * threads, and save the cache and the snapshot, just
+     * once per compilation.
+     */
+    private void finish() {
+        if (!finished) {
+            finished = true;
+            checker.drain();
+            checker.finish();
+        }
+    }
+}
@@ -4,18 +4,45 @@ import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
 import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
 import javax.tools.Diagnostic;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.Field;
 import java.util.Set;
 
 @SupportedAnnotationTypes("*")
+@SupportedOptions({HQLProcessor.CACHE_OPTION, HQLProcessor.THREADS_OPTION,
+        HQLProcessor.SNAPSHOT_OPTION})
 public class HQLProcessor extends AbstractProcessor {
 
     static final String CHECK_HQL = "org.hibernate.query.validator.CheckHQL";
 
+    /**
+     * The processor option naming a file in which to keep
+     * the results of validation from one build to the next.
+     */
+    static final String CACHE_OPTION = "hibernate.query.validator.cache";
+
+    /**
+     * The processor option specifying the number of threads
+     * used to validate queries, or 0 for one per core. By
+     * default, queries are validated on the compiler thread.
+     */
+    static final String THREADS_OPTION = "hibernate.query.validator.threads";
+
+    /**
+     * The processor option naming a file in which to keep
+     * a snapshot of the metamodel from one build to the
+     * next. Currently only supported by `javac`.
+     */
+    static final String SNAPSHOT_OPTION = "hibernate.query.validator.snapshot";
+
     static String jpa(String name) {
         //sneak it past shadow
         return new StringBuilder("javax.")
@@ -27,6 +54,7 @@ public class HQLProcessor extends AbstractProcessor {
     public static boolean forceEclipseForTesting = false;
 
     private AbstractProcessor delegate;
+    private boolean installed;
 
     @Override
     public SourceVersion getSupportedSourceVersion() {
@@ -36,6 +64,14 @@ public class HQLProcessor extends AbstractProcessor {
     @Override
     public synchronized void init(ProcessingEnvironment processingEnv) {
         super.init(processingEnv);
+        //the delegate is not installed until we see code
+        //annotated @CheckHQL, so that we don't load any
+        //Hibernate classes in a module with no queries
+    }
+
+    private void installDelegate() {
+        installed = true;
+        ProcessingEnvironment processingEnv = unwrap(this.processingEnv);
         String compiler = processingEnv.getClass().getName();
         if (compiler.endsWith("IdeBuildProcessingEnvImpl")
                 || forceEclipseForTesting) {
@@ -46,7 +82,10 @@ public class HQLProcessor extends AbstractProcessor {
         } else if (compiler.endsWith("BatchProcessingEnvImpl")) {
             delegate = new ECJProcessor();
         } else if (compiler.endsWith("JavacProcessingEnvironment")) {
-            delegate = new JavacProcessor();
+            //the queries are validated by the plugin instead
+            if (!JavacProcessor.isPluginEnabled(processingEnv)) {
+                delegate = new JavacProcessor();
+            }
         }
         if (delegate!=null) {
             delegate.init(processingEnv);
@@ -61,6 +100,30 @@ public class HQLProcessor extends AbstractProcessor {
 //        }
     }
 
+    /**
+     * Gradle wraps the compiler's processing environment
+     * when it runs an incremental annotation processor, but
+     * our delegates need the compiler's own implementation.
+     */
+    private static ProcessingEnvironment unwrap(ProcessingEnvironment processingEnv) {
+        for (Class<?> type = processingEnv.getClass();
+             type != null && type.getName().startsWith("org.gradle.");
+             type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (field.getType() == ProcessingEnvironment.class) {
+                    try {
+                        field.setAccessible(true);
+                        return unwrap((ProcessingEnvironment) field.get(processingEnv));
+                    }
+                    catch (Exception e) {
+                        return processingEnv;
+                    }
+                }
+            }
+        }
+        return processingEnv;
+    }
+
     private static AbstractProcessor newEclipseProcessor() {
         try {
             return (AbstractProcessor)
@@ -72,12 +135,47 @@ public class HQLProcessor extends AbstractProcessor {
         }
     }
 
+    /**
+     * Determine if any of the given root elements, or the
+     * package containing it, is annotated {@code @CheckHQL},
+     * using only the language model API.
+     */
+    private static boolean isCheckHQLPresent(Set<? extends Element> rootElements) {
+        for (Element element : rootElements) {
+            if (!(element instanceof PackageElement)
+                    && (isAnnotatedCheckHQL(element)
+                        || isAnnotatedCheckHQL(element.getEnclosingElement()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAnnotatedCheckHQL(Element element) {
+        if (element != null) {
+            for (AnnotationMirror am : element.getAnnotationMirrors()) {
+                if (am.getAnnotationType().asElement().toString().equals(CHECK_HQL)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
-        if (delegate==null) {
+        if (!installed
+                && (roundEnv.processingOver()
+                    || !isCheckHQLPresent(roundEnv.getRootElements()))) {
             return false;
         }
         try {
+            if (!installed) {
+                installDelegate();
+            }
+            if (delegate==null) {
+                return false;
+            }
 //            processingEnv.getMessager()
 //                    .printMessage(Diagnostic.Kind.MANDATORY_WARNING,
 //                            "CALLED " + roundEnv.getRootElements().size());
@@ -0,0 +1,534 @@
+package org.hibernate.query.validator;
+
+import antlr.RecognitionException;
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.tools.javac.code.Attribute;
+import com.sun.tools.javac.model.JavacElements;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeInfo;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Log;
+import com.sun.tools.javac.util.Pair;
+import org.hibernate.QueryException;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Collections.emptySet;
+import static org.hibernate.query.validator.HQLProcessor.CHECK_HQL;
+import static org.hibernate.query.validator.HQLProcessor.jpa;
+import static org.hibernate.query.validator.Validation.validate;
+
+/**
+ * Finds the queries in the source trees of classes compiled
+ * by `javac`, and validates them. Used by the annotation
+ * processor, which sees trees that have only been parsed,
+ * and by the compiler plugin, which sees attributed trees.
+ *
+ * @see JavacProcessor
+ * @see HQLPlugin
+ */
+class JavacChecker {
+
+    private static final String KEY = "proc.messager";
+
+    private Context context;
+    private Context factoryContext;
+    private JavacSessionFactory factory;
+    private final ValidationCache cache;
+    private final ValidationQueue queue;
+    private final MetamodelSnapshot snapshot;
+
+    JavacChecker(Map<String, String> options) {
+        cache = ValidationCache.open(options);
+        queue = ValidationQueue.open(options);
+        snapshot = MetamodelSnapshot.open(options);
+    }
+
+    /**
+     * Start checking the root elements of a new processing
+     * round, in which javac may have started a new context.
+     */
+    void startRound(Context context, Set<? extends Element> rootElements) {
+        this.context = context;
+        //new entities may be added in each round
+        cache.startRound();
+        if (factory != null && factoryContext == context) {
+            factory.addRootElements(rootElements);
+        }
+    }
+
+    /**
+     * Validate every query submitted so far.
+     */
+    void drain() {
+        queue.drain();
+    }
+
+    /**
+     * Stop validating queries, and save whatever should be
+     * remembered for the next build.
+     */
+    void finish() {
+        queue.shutdown();
+        save();
+    }
+
+    void checkHQL(Element element) {
+        if (isCheckable(element) || isCheckable(element.getEnclosingElement())) {
+            JavacElements elementUtils = JavacElements.instance(context);
+            Set<String> whitelist = getWhitelist(element);
+            String className = elementUtils.getBinaryName((TypeElement) element).toString();
+            JCTree tree = elementUtils.getTree(element);
+            if (tree == null) {
+                //the class was not recompiled, but its queries
+                //might depend on entities which were
+                recheckHQL(element, className, whitelist);
+            }
+            else {
+                JavacSessionFactory factory = getSessionFactory();
+                cache.startClass(className);
+                tree.accept(new TreeScanner() {
+                    Set<Integer> setParameterLabels = new HashSet<>();
+                    Set<String> setParameterNames = new HashSet<>();
+                    boolean immediatelyCalled;
+
+                    private void check(JCTree.JCExpression query, String hql,
+                                       boolean inCreateQueryMethod) {
+                        ErrorReporter handler = new ErrorReporter(query, element);
+                        boolean checkParams = inCreateQueryMethod && immediatelyCalled;
+                        //the parameters set at this call site
+                        Set<Integer> labels = new HashSet<>(setParameterLabels);
+                        Set<String> names = new HashSet<>(setParameterNames);
+                        if (checkParams) {
+                            setParameterLabels.clear();
+                            setParameterNames.clear();
+                        }
+                        String location = handler.getLocation();
+                        if (location != null) {
+                            cache.remember(className, new ValidationCache.Occurrence(
+                                    hql, checkParams, labels, names, location));
+                        }
+                        queue.submit(handler, reporter -> {
+                            factory.setFunctionWhitelist(whitelist);
+                            validate(hql, checkParams, labels, names,
+                                    reporter, factory, cache);
+                        });
+                    }
+
+                    JCTree.JCExpression firstArgument(JCTree.JCMethodInvocation call) {
+                        for (JCTree.JCExpression e : call.args) {
+                            return constantValue(e) == null ? null : e;
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public void visitApply(JCTree.JCMethodInvocation jcMethodInvocation) {
+                        String name = getMethodName(jcMethodInvocation.meth);
+                        switch (name) {
+                            case "getResultList":
+                            case "getSingleResult":
+                                immediatelyCalled = true;
+                                super.visitApply(jcMethodInvocation);
+                                immediatelyCalled = false;
+                                break;
+                            case "createQuery":
+                                JCTree.JCExpression queryArg = firstArgument(jcMethodInvocation);
+                                if (queryArg != null && constantValue(queryArg) instanceof String) {
+                                    String hql = (String) constantValue(queryArg);
+                                    check(queryArg, hql, true);
+                                }
+                                super.visitApply(jcMethodInvocation);
+                                break;
+                            case "setParameter":
+                                JCTree.JCExpression paramArg = firstArgument(jcMethodInvocation);
+                                if (paramArg != null) {
+                                    Object value = constantValue(paramArg);
+                                    if (value instanceof String) {
+                                        setParameterNames.add((String) value);
+                                    } else if (value instanceof Integer) {
+                                        setParameterLabels.add((Integer) value);
+                                    }
+                                }
+                                super.visitApply(jcMethodInvocation);
+                                break;
+                            default:
+                                super.visitApply(jcMethodInvocation); //needed!
+                                break;
+                        }
+                    }
+
+                    @Override
+                    public void visitAnnotation(JCTree.JCAnnotation jcAnnotation) {
+                        AnnotationMirror annotation = jcAnnotation.attribute;
+                        String name = annotation.getAnnotationType().toString();
+                        if (name.equals(jpa("NamedQuery"))) {
+                            for (JCTree.JCExpression arg : jcAnnotation.args) {
+                                if (arg instanceof JCTree.JCAssign) {
+                                    JCTree.JCAssign assign = (JCTree.JCAssign) arg;
+                                    Object value = constantValue(assign.rhs);
+                                    if ("query".equals(assign.lhs.toString())
+                                            && value instanceof String) {
+                                        check(assign.rhs, (String) value, false);
+                                    }
+                                }
+                            }
+                        } else {
+                            super.visitAnnotation(jcAnnotation); //needed!
+                        }
+                    }
+
+                });
+            }
+        }
+    }
+
+    /**
+     * The value of a literal or, in an attributed tree, of
+     * any constant expression, including a concatenation
+     * of constants, which javac has already folded.
+     */
+    private static Object constantValue(JCTree.JCExpression expression) {
+        if (expression instanceof JCTree.JCLiteral) {
+            return ((JCTree.JCLiteral) expression).value;
+        }
+        else {
+            return expression.type == null ? null : expression.type.constValue();
+        }
+    }
+
+    /**
+     * Validate the queries remembered from the last time
+     * the given class was compiled from source.
+     */
+    private void recheckHQL(Element element, String className,
+                            Set<String> whitelist) {
+        JavacSessionFactory factory = null;
+        for (ValidationCache.Occurrence occurrence :
+                cache.getOccurrences(className)) {
+            if (factory == null) {
+                factory = getSessionFactory();
+            }
+            JavacSessionFactory sessionFactory = factory;
+            queue.submit(new ClassFileReporter(element, occurrence.location),
+                    reporter -> {
+                        sessionFactory.setFunctionWhitelist(whitelist);
+                        //validation consumes the sets it is passed
+                        validate(occurrence.hql, occurrence.checkParams,
+                                new HashSet<>(occurrence.setParameterLabels),
+                                new HashSet<>(occurrence.setParameterNames),
+                                reporter, sessionFactory, cache);
+                    });
+        }
+    }
+
+    /**
+     * The factory, and the persisters it has built, are
+     * shared by every query in the compilation. But javac
+     * may start a new context, with new symbols, in each
+     * round, in which case we need a new factory too.
+     */
+    private JavacSessionFactory getSessionFactory() {
+        if (factory == null || factoryContext != context) {
+            factory = new JavacSessionFactory(context, snapshot);
+            factoryContext = context;
+        }
+        return factory;
+    }
+
+    /**
+     * Save whatever should be remembered for the next build.
+     */
+    void save() {
+        try {
+            cache.save();
+        }
+        catch (IOException e) {
+            Log.instance(context).warning(KEY,
+                    "could not save query validation cache: "
+                            + e.getMessage());
+        }
+        try {
+            snapshot.save();
+        }
+        catch (IOException e) {
+            Log.instance(context).warning(KEY,
+                    "could not save metamodel snapshot: "
+                            + e.getMessage());
+        }
+    }
+
+    /**
+     * Report a diagnostic against the given element or, if
+     * it has no source tree, against no position at all.
+     */
+    private void print(Diagnostic.Kind kind, String message,
+                       Element element, AnnotationMirror am, AnnotationValue av) {
+        Log log = Log.instance(context);
+        Pair<JCTree, JCTree.JCCompilationUnit> pair =
+                JavacElements.instance(context).getTreeAndTopLevel(element, am, av);
+        JavaFileObject previous = pair == null ? null :
+                log.useSource(pair.snd.sourcefile);
+        try {
+            if (kind == Diagnostic.Kind.ERROR) {
+                if (pair == null) {
+                    log.error(KEY, message);
+                }
+                else {
+                    log.error(pair.fst, KEY, message);
+                }
+            }
+            else {
+                if (pair == null) {
+                    log.warning(KEY, message);
+                }
+                else {
+                    log.warning(pair.fst, KEY, message);
+                }
+            }
+        }
+        finally {
+            if (pair != null) {
+                log.useSource(previous);
+            }
+        }
+    }
+
+    private static boolean isCheckAnnotation(AnnotationMirror am) {
+        return am.getAnnotationType().asElement().toString().equals(CHECK_HQL);
+    }
+
+    private static boolean isCheckable(Element element) {
+        for (AnnotationMirror am: element.getAnnotationMirrors()) {
+            if (isCheckAnnotation(am)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<String> getWhitelist(Element element) {
+        Set<String> list = new HashSet<>();
+        Set<String> functionNames = emptySet();
+        for (AnnotationMirror am : element.getAnnotationMirrors()) {
+            if (isCheckAnnotation(am)) {
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> member
+                        : am.getElementValues().entrySet()) {
+                    AnnotationValue act = member.getValue();
+                    switch (member.getKey().getSimpleName().toString()) {
+                        case "whitelist":
+                            if (act instanceof Attribute.Array) {
+                                for (Attribute a: ((Attribute.Array) act).values) {
+                                    Object value = a.getValue();
+                                    if (value instanceof String) {
+                                        list.add(value.toString());
+                                    }
+                                }
+                            }
+                            break;
+                        case "dialect":
+                            if (act instanceof Attribute.Class) {
+                                String name = act.getValue().toString().replace(".class","");
+                                try {
+                                    functionNames = DialectFunctions.getFunctionNames(name);
+                                }
+                                catch (Exception e2) {
+                                    print(Diagnostic.Kind.ERROR,
+                                            "could not create dialect " + name,
+                                            element, am, act);
+                                }
+                            }
+                            break;
+                    }
+                }
+            }
+        }
+        return DialectFunctions.union(list, functionNames);
+    }
+
+    private static String getMethodName(ExpressionTree select) {
+        if (select instanceof MemberSelectTree) {
+            MemberSelectTree ref = (MemberSelectTree) select;
+            return ref.getIdentifier().toString();
+        } else if (select instanceof IdentifierTree) {
+            IdentifierTree ref = (IdentifierTree) select;
+            return ref.getName().toString();
+        } else {
+            return null;
+        }
+    }
+
+    class ErrorReporter implements Validation.Handler {
+
+        private Log log;
+        private JCTree.JCExpression query;
+        private JCTree.JCCompilationUnit unit;
+        private JavaFileObject sourcefile;
+        private CharSequence source;
+
+        ErrorReporter(JCTree.JCExpression query, Element element) {
+            this.query = query;
+
+            log = Log.instance(context);
+            Pair pair = JavacElements.instance(context)
+                    .getTreeAndTopLevel(element, null, null);
+            unit = pair == null ? null : (JCTree.JCCompilationUnit) pair.snd;
+            sourcefile = unit == null ? null : unit.sourcefile;
+        }
+
+        /**
+         * The position in the source of the given offset in
+         * the query string, which is only meaningful if the
+         * query is written as a single literal.
+         */
+        private int position(int offset) {
+            if (query instanceof JCTree.JCLiteral) {
+                CharSequence source = source();
+                return source == null ?
+                        query.pos + offset :
+                        LiteralPositions.position(source, query.pos, offset);
+            }
+            else {
+                return TreeInfo.getStartPos(query);
+            }
+        }
+
+        /**
+         * The text of the source file, read only when there
+         * is something to report, and usually cached by the
+         * file manager.
+         */
+        private CharSequence source() {
+            if (source == null && sourcefile != null) {
+                try {
+                    source = sourcefile.getCharContent(true);
+                }
+                catch (IOException e) {
+                    return null;
+                }
+            }
+            return source;
+        }
+
+        /**
+         * The file and line of the query, or null if the
+         * file is unknown.
+         */
+        String getLocation() {
+            return unit == null || unit.getLineMap() == null ? null :
+                    sourcefile.getName() + ':'
+                            + unit.getLineMap().getLineNumber(TreeInfo.getStartPos(query));
+        }
+
+        //the diagnostics may be reported after another
+        //reporter has been created for a different file
+        private Log log() {
+            if (sourcefile != null) {
+                log.useSource(sourcefile);
+            }
+            return log;
+        }
+
+        @Override
+        public int getErrorCount() {
+            return 0;
+        }
+
+        @Override
+        public void throwQueryException() throws QueryException {}
+
+        @Override
+        public void error(int start, int end, String message) {
+            log().error(position(start), KEY, message);
+        }
+
+        @Override
+        public void warn(int start, int end, String message) {
+            log().warning(position(start), KEY, message);
+        }
+
+        @Override
+        public void reportError(RecognitionException e) {
+            log().error(position(e.column), KEY, e.getMessage());
+        }
+
+        @Override
+        public void reportError(String text) {
+            log().error(query, KEY, text);
+        }
+
+        @Override
+        public void reportWarning(String text) {
+            log().warning(query, KEY, text);
+        }
+
+    }
+
+    /**
+     * Reports the diagnostics for a query remembered from an
+     * earlier build against the class it occurs in, since
+     * there is no source tree for the class.
+     */
+    class ClassFileReporter implements Validation.Handler {
+
+        private final Element element;
+        private final String location;
+
+        ClassFileReporter(Element element, String location) {
+            this.element = element;
+            this.location = location;
+        }
+
+        private void print(Diagnostic.Kind kind, String message) {
+            JavacChecker.this.print(kind, location + ": " + message,
+                    element, null, null);
+        }
+
+        @Override
+        public int getErrorCount() {
+            return 0;
+        }
+
+        @Override
+        public void throwQueryException() throws QueryException {}
+
+        @Override
+        public void error(int start, int end, String message) {
+            print(Diagnostic.Kind.ERROR, message);
+        }
+
+        @Override
+        public void warn(int start, int end, String message) {
+            print(Diagnostic.Kind.WARNING, message);
+        }
+
+        @Override
+        public void reportError(RecognitionException e) {
+            print(Diagnostic.Kind.ERROR, e.getMessage());
+        }
+
+        @Override
+        public void reportError(String text) {
+            print(Diagnostic.Kind.ERROR, text);
+        }
+
+        @Override
+        public void reportWarning(String text) {
+            print(Diagnostic.Kind.WARNING, text);
+        }
+
+    }
+}
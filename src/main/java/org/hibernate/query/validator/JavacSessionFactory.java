@@ -1,24 +1,32 @@
 package org.hibernate.query.validator;
 
 import com.sun.tools.javac.code.*;
-import com.sun.tools.javac.processing.JavacProcessingEnvironment;
 import com.sun.tools.javac.util.Context;
 import com.sun.tools.javac.util.Names;
-import org.hibernate.hql.internal.ast.ParseErrorHandler;
 import org.hibernate.type.*;
 import org.hibernate.type.Type;
 
 import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.type.TypeKind;
 import javax.persistence.AccessType;
+import javax.tools.JavaFileObject;
 import java.beans.Introspector;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.util.Arrays.stream;
+import static java.util.Collections.emptyList;
 import static org.hibernate.internal.util.StringHelper.*;
 import static org.hibernate.query.validator.HQLProcessor.jpa;
 
@@ -28,49 +36,115 @@ class JavacSessionFactory extends MockSessionFactory {
     private final Types types;
     private final Symtab syms;
 
-    JavacSessionFactory(List<String> functionWhitelist,
-                        ParseErrorHandler handler,
-                        JavacProcessingEnvironment processingEnv) {
-        super(functionWhitelist, handler);
-        Context context = processingEnv.getContext();
+    private final Map<String, Symbol.ClassSymbol> entityClassesByName = new HashMap<>();
+    private final Set<Symbol.PackageSymbol> indexedPackages = new HashSet<>();
+
+    private final MetamodelSnapshot snapshot;
+
+    //the default access type of each class looked at so far
+    private final Map<Symbol.TypeSymbol, AccessType> defaultAccessTypes = new ConcurrentHashMap<>();
+
+    //the constructors of each class, and the class of each
+    //basic type, used to check the arguments of a 'select
+    //new', and only accessed while holding the lock
+    private final Map<Symbol.ClassSymbol, Map<Integer, List<Symbol.VarSymbol[]>>> constructorsByArity = new HashMap<>();
+    //sadly there is no way to get the classname from a
+    //Hibernate Type without trying to load the class, so
+    //remember when it couldn't be loaded, or isn't known
+    private final Map<org.hibernate.type.Type, Optional<Symbol.TypeSymbol>> basicTypeClasses = new HashMap<>();
+
+    private final PropertyIndex.Cache<Symbol.TypeSymbol, Symbol> propertyIndexes =
+            new PropertyIndex.Cache<>(JavacSessionFactory::indexProperties);
+
+    JavacSessionFactory(Context context, MetamodelSnapshot snapshot) {
         names = Names.instance(context);
         types = Types.instance(context);
         syms = Symtab.instance(context);
+        this.snapshot = snapshot;
     }
 
     @Override
     MockEntityPersister createMockEntityPersister(String entityName) {
+        String answer = snapshot.get(MetamodelSnapshot.ENTITY, entityName);
+        if (answer != null) {
+            String[] parts = answer.split(":", -1);
+            Set<String> superclassNames = new HashSet<>();
+            for (String name: split(",", parts[2])) {
+                superclassNames.add(name);
+            }
+            return new EntityPersister(entityName, null,
+                    AccessType.valueOf(parts[0]), parts[1],
+                    superclassNames);
+        }
         Symbol.ClassSymbol type = findEntityClass(entityName);
-        return type == null ? null : new EntityPersister(entityName, type);
+        if (type == null) {
+            return null;
+        }
+        AccessType defaultAccessType = getDefaultAccessType(type);
+        Set<String> superclassNames = new HashSet<>();
+        for (com.sun.tools.javac.code.Type superclass = type.getSuperclass();
+             superclass != null && superclass.tsym instanceof Symbol.ClassSymbol;
+             superclass = ((Symbol.ClassSymbol) superclass.tsym).getSuperclass()) {
+            superclassNames.add(superclass.tsym.flatName().toString());
+        }
+        String className = type.flatName().toString();
+        if (snapshot.isEnabled()) {
+            dependOn(type);
+            snapshot.put(MetamodelSnapshot.ENTITY, entityName,
+                    defaultAccessType.name() + ':' + className + ':'
+                            + String.join(",", superclassNames));
+        }
+        return new EntityPersister(entityName, type,
+                defaultAccessType, className, superclassNames);
     }
 
     @Override
     MockCollectionPersister createMockCollectionPersister(String role) {
         String entityName = root(role); //only works because entity names don't contain dots
         String propertyPath = unroot(role);
+        String answer = snapshot.get(MetamodelSnapshot.COLLECTION, role);
+        if (answer != null) {
+            return decodeCollectionPersister(role, propertyPath, answer);
+        }
         Symbol.ClassSymbol entityClass = findEntityClass(entityName);
         AccessType defaultAccessType = getDefaultAccessType(entityClass);
         Symbol property =
                 findPropertyByPath(entityClass, propertyPath, defaultAccessType);
         CollectionType collectionType = collectionType(memberType(property), role);
+        MockCollectionPersister result;
         if (isToManyAssociation(property)) {
-            return new ToManyAssociationPersister(role, collectionType,
+            result = new ToManyAssociationPersister(role, collectionType,
                     getToManyTargetEntityName(property));
         }
         else if (isElementCollectionProperty(property)) {
             Symbol.TypeSymbol elementType =
                     getElementCollectionElementType(property).tsym;
-            return new ElementCollectionPersister(role, collectionType,
+            result = new ElementCollectionPersister(role, collectionType,
                     elementType, propertyPath, defaultAccessType);
         }
         else {
-            return null;
+            result = null;
         }
+        if (snapshot.isEnabled()) {
+            String encoded = encodeCollectionPersister(result);
+            if (encoded != null) {
+                dependOnPath(entityClass, propertyPath, defaultAccessType);
+                if (result instanceof ElementCollectionPersister) {
+                    dependOn(((ElementCollectionPersister) result).elementType);
+                }
+                if (result != null) {
+                    //the target entity, or the embeddable element
+                    dependOn(result.getElementType());
+                }
+                snapshot.put(MetamodelSnapshot.COLLECTION, role, encoded);
+            }
+        }
+        return result;
     }
 
-    private static Symbol findPropertyByPath(Symbol.TypeSymbol type,
-                                             String propertyPath,
-                                             AccessType defaultAccessType) {
+    private Symbol findPropertyByPath(Symbol.TypeSymbol type,
+                                      String propertyPath,
+                                      AccessType defaultAccessType) {
         return stream(split(".", propertyPath))
                 .reduce((Symbol) type,
                         (symbol, segment) -> symbol==null ? null :
@@ -79,48 +153,63 @@ class JavacSessionFactory extends MockSessionFactory {
                         (last, current) -> current);
     }
 
-    static Type propertyType(Symbol member,
-                             String entityName, String path,
-                             AccessType defaultAccessType) {
+    Type propertyType(Symbol member,
+                      String entityName, String path,
+                      AccessType defaultAccessType) {
+        return propertyType(member, mappingKind(member),
+                entityName, path, defaultAccessType);
+    }
+
+    private Type propertyType(Symbol member, PropertyIndex.Kind kind,
+                              String entityName, String path,
+                              AccessType defaultAccessType) {
         com.sun.tools.javac.code.Type memberType = getMemberType(member);
+        switch (kind) {
+            case EMBEDDED:
+                return componentType(memberType.tsym, defaultAccessType,
+                        () -> compositeType(
+                                new Component(this, memberType.tsym,
+                                        entityName, path, defaultAccessType),
+                                simpleName(memberType)));
+            case TO_ONE:
+                String targetEntity = getToOneTargetEntity(member);
+                return typeHelper.entity(targetEntity);
+            case TO_MANY:
+            case ELEMENT_COLLECTION:
+                return collectionType(memberType, qualify(entityName, path));
+            default:
+                Type result = typeResolver.basic(qualifiedName(memberType));
+                return result == null ? UNKNOWN_TYPE : result;
+        }
+    }
+
+    private static PropertyIndex.Kind mappingKind(Symbol member) {
         if (isEmbeddedProperty(member)) {
-            return new CompositeCustomType(
-                    new Component(memberType.tsym,
-                            entityName, path, defaultAccessType)) {
-                @Override
-                public String getName() {
-                    return simpleName(memberType);
-                }
-            };
+            return PropertyIndex.Kind.EMBEDDED;
         }
         else if (isToOneAssociation(member)) {
-            String targetEntity = getToOneTargetEntity(member);
-            return typeHelper.entity(targetEntity);
+            return PropertyIndex.Kind.TO_ONE;
         }
         else if (isToManyAssociation(member)) {
-            return collectionType(memberType, qualify(entityName, path));
+            return PropertyIndex.Kind.TO_MANY;
         }
         else if (isElementCollectionProperty(member)) {
-            return collectionType(memberType, qualify(entityName,path));
+            return PropertyIndex.Kind.ELEMENT_COLLECTION;
         }
         else {
-            Type result = typeResolver.basic(qualifiedName(memberType));
-            return result == null ? UNKNOWN_TYPE : result;
+            return PropertyIndex.Kind.BASIC;
         }
     }
 
-    private static Type elementCollectionElementType(Symbol.TypeSymbol elementType,
-                                                     String role, String path,
-                                                     AccessType defaultAccessType) {
+    private Type elementCollectionElementType(Symbol.TypeSymbol elementType,
+                                              String role, String path,
+                                              AccessType defaultAccessType) {
         if (isEmbeddableType(elementType)) {
-            return new CompositeCustomType(
-                    new Component(elementType,
-                            role, path, defaultAccessType)) {
-                @Override
-                public String getName() {
-                    return simpleName(elementType.type);
-                }
-            };
+            return componentType(elementType, defaultAccessType,
+                    () -> compositeType(
+                            new Component(this, elementType,
+                                    role, path, defaultAccessType),
+                            simpleName(elementType.type)));
         }
         else {
             return typeResolver.basic(qualifiedName(elementType.type));
@@ -132,42 +221,49 @@ class JavacSessionFactory extends MockSessionFactory {
         return createCollectionType(role, simpleName(type));
     }
 
+    private static CompositeCustomType compositeType(Component component,
+                                                     String name) {
+        return new CompositeCustomType(component) {
+            @Override
+            public String getName() {
+                return name;
+            }
+        };
+    }
+
     private static class Component extends MockComponent {
         private String[] propertyNames;
         private Type[] propertyTypes;
+        //null if the component was read from a snapshot
         Symbol.TypeSymbol type;
+        final String className;
+
+        Component(String className, String[] propertyNames,
+                  Type[] propertyTypes) {
+            this.className = className;
+            this.propertyNames = propertyNames;
+            this.propertyTypes = propertyTypes;
+        }
 
-        Component(Symbol.TypeSymbol type,
+        Component(JavacSessionFactory factory, Symbol.TypeSymbol type,
                   String entityName, String path,
                   AccessType defaultAccessType) {
             this.type = type;
+            this.className = type.flatName().toString();
 
             List<String> names = new ArrayList<>();
             List<Type> types = new ArrayList<>();
 
-            while (type instanceof Symbol.ClassSymbol) {
-                if (isMappedClass(type)) { //ignore unmapped intervening classes
-                    AccessType accessType =
-                            getAccessType(type, defaultAccessType);
-                    for (Symbol member: type.members()
-                            .getElements(symbol
-                                    -> isPersistable(symbol, accessType))) {
-                        String name = propertyName(member);
-                        Type propertyType =
-                                propertyType(member, entityName,
-                                        qualify(path, name),
-                                        defaultAccessType);
-                        if (propertyType != null) {
-                            names.add(name);
-                            types.add(propertyType);
-                        }
-                    }
+            for (PropertyIndex.Property<Symbol> property:
+                    factory.propertyIndex(type, defaultAccessType).properties()) {
+                Type propertyType =
+                        factory.propertyType(property.member, property.kind,
+                                entityName, qualify(path, property.name),
+                                defaultAccessType);
+                if (propertyType != null) {
+                    names.add(property.name);
+                    types.add(propertyType);
                 }
-                Symbol.ClassSymbol classSymbol =
-                        (Symbol.ClassSymbol) type;
-                com.sun.tools.javac.code.Type superclass =
-                        classSymbol.getSuperclass();
-                type = superclass == null ? null : superclass.tsym;
             }
 
             propertyNames = names.toArray(new String[0]);
@@ -187,28 +283,60 @@ class JavacSessionFactory extends MockSessionFactory {
     }
 
     private class EntityPersister extends MockEntityPersister {
-        private final Symbol.ClassSymbol type;
-
-        private EntityPersister(String entityName, Symbol.ClassSymbol type) {
-            super(entityName, getDefaultAccessType(type), JavacSessionFactory.this);
+        //null if the persister was read from a snapshot
+        //and has not yet needed the symbol
+        private Symbol.ClassSymbol type;
+        private final String className;
+        private final Set<String> superclassNames;
+
+        private EntityPersister(String entityName, Symbol.ClassSymbol type,
+                                AccessType defaultAccessType, String className,
+                                Set<String> superclassNames) {
+            super(entityName, defaultAccessType, JavacSessionFactory.this);
             this.type = type;
+            this.className = className;
+            this.superclassNames = superclassNames;
             initSubclassPersisters();
         }
 
         @Override
-        boolean isSubclassPersister(MockEntityPersister entityPersister) {
-            EntityPersister persister = (EntityPersister) entityPersister;
-            return persister.type.isSubClass(type, types);
+        String getEntityClassName() {
+            return className;
+        }
+
+        @Override
+        Collection<String> getEntitySuperclassNames() {
+            return superclassNames;
         }
 
         @Override
         Type createPropertyType(String propertyPath) {
+            String key = getEntityName() + '#' + propertyPath;
+            String answer = snapshot.get(MetamodelSnapshot.PROPERTY, key);
+            if (answer != null) {
+                return decodeType(answer, new int[1]);
+            }
+            if (type == null) {
+                type = findEntityClass(getEntityName());
+                if (type == null) {
+                    return null;
+                }
+            }
             Symbol symbol =
                     findPropertyByPath(type, propertyPath,
                             defaultAccessType);
-            return symbol == null ? null :
+            Type result = symbol == null ? null :
                     propertyType(symbol, getEntityName(),
                             propertyPath, defaultAccessType);
+            if (snapshot.isEnabled()) {
+                String encoded = encodeType(result);
+                if (encoded != null) {
+                    dependOnPath(type, propertyPath, defaultAccessType);
+                    dependOn(result);
+                    snapshot.put(MetamodelSnapshot.PROPERTY, key, encoded);
+                }
+            }
+            return result;
         }
 
     }
@@ -229,7 +357,10 @@ class JavacSessionFactory extends MockSessionFactory {
     }
 
     private class ElementCollectionPersister extends MockCollectionPersister {
-        private final Symbol.TypeSymbol elementType;
+        //null if the persister was read from a snapshot
+        //and has not yet needed the symbol
+        private Symbol.TypeSymbol elementType;
+        private final String collectionPath;
         private final AccessType defaultAccessType;
 
         ElementCollectionPersister(String role,
@@ -242,17 +373,286 @@ class JavacSessionFactory extends MockSessionFactory {
                             propertyPath, defaultAccessType),
                     JavacSessionFactory.this);
             this.elementType = elementType;
+            this.collectionPath = propertyPath;
+            this.defaultAccessType = defaultAccessType;
+        }
+
+        ElementCollectionPersister(String role,
+                                   CollectionType collectionType,
+                                   Type elementType,
+                                   String propertyPath,
+                                   AccessType defaultAccessType) {
+            super(role, collectionType, elementType,
+                    JavacSessionFactory.this);
+            this.collectionPath = propertyPath;
             this.defaultAccessType = defaultAccessType;
         }
 
         @Override
         Type getElementPropertyType(String propertyPath) {
+            String key = getName() + '#' + propertyPath;
+            String answer = snapshot.get(MetamodelSnapshot.ELEMENT_PROPERTY, key);
+            if (answer != null) {
+                return decodeType(answer, new int[1]);
+            }
+            if (elementType == null) {
+                Symbol.ClassSymbol entityClass = findEntityClass(getOwnerEntityName());
+                Symbol property = entityClass == null ? null :
+                        findPropertyByPath(entityClass, collectionPath,
+                                defaultAccessType);
+                if (property == null) {
+                    return null;
+                }
+                elementType = getElementCollectionElementType(property).tsym;
+            }
             Symbol symbol =
                     findPropertyByPath(elementType, propertyPath,
                             defaultAccessType);
-            return symbol == null ? null :
+            Type result = symbol == null ? null :
                     propertyType(symbol, getOwnerEntityName(),
                             propertyPath, defaultAccessType);
+            if (snapshot.isEnabled()) {
+                String encoded = encodeType(result);
+                if (encoded != null) {
+                    dependOnPath(elementType, propertyPath, defaultAccessType);
+                    dependOn(result);
+                    snapshot.put(MetamodelSnapshot.ELEMENT_PROPERTY, key, encoded);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Remember that the snapshot depends on the given class
+     * and its mapped superclasses, along with any unmapped
+     * class in between, but not on the unmapped classes
+     * above the last mapped superclass, which play no part
+     * in the mapping, and which may well be in a library.
+     */
+    private void dependOn(Symbol.TypeSymbol type) {
+        List<Symbol.ClassSymbol> unmapped = new ArrayList<>();
+        boolean first = true;
+        while (type instanceof Symbol.ClassSymbol) {
+            Symbol.ClassSymbol classSymbol = (Symbol.ClassSymbol) type;
+            if (first || isMappedClass(classSymbol)) {
+                for (Symbol.ClassSymbol intervening: unmapped) {
+                    dependOnFile(intervening);
+                }
+                unmapped.clear();
+                dependOnFile(classSymbol);
+            }
+            else {
+                unmapped.add(classSymbol);
+            }
+            first = false;
+            com.sun.tools.javac.code.Type superclass = classSymbol.getSuperclass();
+            type = superclass == null ? null : superclass.tsym;
+        }
+    }
+
+    private void dependOnFile(Symbol.ClassSymbol classSymbol) {
+        JavaFileObject file = classSymbol.classfile == null ?
+                classSymbol.sourcefile : classSymbol.classfile;
+        if (file != null) {
+            snapshot.dependOn(file.toUri());
+        }
+    }
+
+    /**
+     * Remember that the snapshot depends on the class of
+     * the target entity of the given association type, or
+     * on the classes of the given embeddable type and its
+     * members.
+     */
+    private void dependOn(Type type) {
+        if (type instanceof EntityType) {
+            Symbol.ClassSymbol entityClass =
+                    findEntityClass(((EntityType) type).getAssociatedEntityName());
+            if (entityClass != null) {
+                dependOn(entityClass);
+            }
+        }
+        else if (type instanceof CompositeCustomType) {
+            Component component = (Component)
+                    ((CompositeCustomType) type).getUserType();
+            dependOn(component.type);
+            for (Type propertyType: component.getPropertyTypes()) {
+                dependOn(propertyType);
+            }
+        }
+    }
+
+    /**
+     * Remember that the snapshot depends on every class
+     * along the given property path.
+     */
+    private void dependOnPath(Symbol.TypeSymbol type, String propertyPath,
+                              AccessType defaultAccessType) {
+        for (String segment: split(".", propertyPath)) {
+            dependOn(type);
+            Symbol symbol = findProperty(type, segment, defaultAccessType);
+            if (symbol == null) {
+                return;
+            }
+            type = getMemberType(symbol).tsym;
+        }
+        dependOn(type);
+    }
+
+    private static String encodeCollectionPersister(MockCollectionPersister persister) {
+        if (persister == null) {
+            return ValidationCache.ABSENT;
+        }
+        String kind = encodeCollectionKind(persister.getCollectionType());
+        if (persister instanceof ToManyAssociationPersister) {
+            return "t:" + kind + ':'
+                    + ((EntityType) persister.getElementType()).getAssociatedEntityName();
+        }
+        else {
+            String elementType = encodeType(persister.getElementType());
+            return elementType == null ? null :
+                    "l:" + kind + ':'
+                            + ((ElementCollectionPersister) persister).defaultAccessType.name()
+                            + ':' + elementType;
+        }
+    }
+
+    private MockCollectionPersister decodeCollectionPersister(String role,
+                                                              String propertyPath,
+                                                              String answer) {
+        if (answer.equals(ValidationCache.ABSENT)) {
+            return null;
+        }
+        String[] parts = answer.split(":", 4);
+        CollectionType collectionType = createCollectionType(role, parts[1]);
+        if (parts[0].equals("t")) {
+            return new ToManyAssociationPersister(role, collectionType, parts[2]);
+        }
+        else {
+            return new ElementCollectionPersister(role, collectionType,
+                    decodeType(parts[3], new int[1]), propertyPath,
+                    AccessType.valueOf(parts[2]));
+        }
+    }
+
+    private static String encodeCollectionKind(CollectionType type) {
+        if (type instanceof SetType) {
+            return "Set";
+        }
+        else if (type instanceof ListType) {
+            return "List";
+        }
+        else if (type instanceof MapType) {
+            return "Map";
+        }
+        else {
+            return "Bag";
+        }
+    }
+
+    /**
+     * Encode a type for the snapshot.
+     *
+     * @return the encoded type, or null if the type cannot
+     *         be recovered from its encoding
+     */
+    private static String encodeType(Type type) {
+        if (type == null) {
+            return ValidationCache.ABSENT;
+        }
+        else if (type == UNKNOWN_TYPE) {
+            return "?";
+        }
+        else if (type instanceof EntityType) {
+            return "e:" + ((EntityType) type).getAssociatedEntityName();
+        }
+        else if (type instanceof CollectionType) {
+            CollectionType collectionType = (CollectionType) type;
+            return "c:" + encodeCollectionKind(collectionType)
+                    + ':' + collectionType.getRole();
+        }
+        else if (type instanceof CompositeCustomType) {
+            Component component = (Component)
+                    ((CompositeCustomType) type).getUserType();
+            String[] names = component.getPropertyNames();
+            Type[] types = component.getPropertyTypes();
+            StringJoiner result = new StringJoiner(";",
+                    "k:" + component.className + ':' + type.getName() + '{', "}");
+            for (int i = 0; i < names.length; i++) {
+                String propertyType = encodeType(types[i]);
+                if (propertyType == null) {
+                    return null;
+                }
+                result.add(names[i] + '=' + propertyType);
+            }
+            return result.toString();
+        }
+        else if (typeResolver.basic(type.getName()) == type) {
+            return "b:" + type.getName();
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * Decode a type encoded by {@link #encodeType}, starting
+     * at the given position, and advancing the position past
+     * the end of the encoded type.
+     */
+    private static Type decodeType(String encoded, int[] position) {
+        int start = position[0];
+        switch (encoded.charAt(start)) {
+            case '-':
+                position[0] = start + 1;
+                return null;
+            case '?':
+                position[0] = start + 1;
+                return UNKNOWN_TYPE;
+            case 'k': {
+                int colon = encoded.indexOf(':', start + 2);
+                int brace = encoded.indexOf('{', colon);
+                String className = encoded.substring(start + 2, colon);
+                String name = encoded.substring(colon + 1, brace);
+                List<String> names = new ArrayList<>();
+                List<Type> types = new ArrayList<>();
+                position[0] = brace + 1;
+                while (encoded.charAt(position[0]) != '}') {
+                    int equals = encoded.indexOf('=', position[0]);
+                    names.add(encoded.substring(position[0], equals));
+                    position[0] = equals + 1;
+                    types.add(decodeType(encoded, position));
+                    if (encoded.charAt(position[0]) == ';') {
+                        position[0]++;
+                    }
+                }
+                position[0]++;
+                return compositeType(new Component(className,
+                        names.toArray(new String[0]),
+                        types.toArray(new Type[0])), name);
+            }
+            default: {
+                int end = start + 2;
+                while (end < encoded.length()
+                        && encoded.charAt(end) != ';'
+                        && encoded.charAt(end) != '}') {
+                    end++;
+                }
+                position[0] = end;
+                String text = encoded.substring(start + 2, end);
+                switch (encoded.charAt(start)) {
+                    case 'e':
+                        return typeHelper.entity(text);
+                    case 'c': {
+                        int colon = text.indexOf(':');
+                        return createCollectionType(text.substring(colon + 1),
+                                text.substring(0, colon));
+                    }
+                    default:
+                        return typeResolver.basic(text);
+                }
+            }
         }
     }
 
@@ -261,55 +661,112 @@ class JavacSessionFactory extends MockSessionFactory {
             Symbol.ClassSymbol type = findClassByQualifiedName(entityName);
             return isEntity(type) ? type : null;
         }
+        if (!entityClassesByName.containsKey(entityName)
+                && indexedPackages.size() != syms.packages.size()) {
+            //the compiler has entered packages we have
+            //not yet looked at since we built the index
+            indexEntityClasses();
+        }
+        //if the index is up to date, a miss is definitive
+        return entityClassesByName.get(entityName);
+    }
+
+    /**
+     * Add the entities in packages we have not yet seen
+     * to the index of entity classes by entity name.
+     */
+    private void indexEntityClasses() {
         for (Symbol.PackageSymbol pack:
                 new ArrayList<>(syms.packages.values())) {
-            try {
-                for (Symbol type: pack.members()
-                        .getElements(symbol ->
-                                isMatchingEntity(symbol, entityName))) {
-                    return (Symbol.ClassSymbol) type;
-                }
+            if (indexedPackages.add(pack)) {
+                indexEntityClasses(pack);
             }
-            catch (Exception e) {}
         }
-        return null;
     }
 
-    private static boolean isMatchingEntity(Symbol symbol, String entityName) {
-        if (symbol instanceof Symbol.ClassSymbol) {
-            Symbol.ClassSymbol type = (Symbol.ClassSymbol) symbol;
-            return isEntity(type)
-                && getEntityName(type).equals(entityName);
+    private void indexEntityClasses(Symbol.PackageSymbol pack) {
+        try {
+            for (Symbol type: pack.members()
+                    .getElements(JavacSessionFactory::isEntityClass)) {
+                entityClassesByName.putIfAbsent(
+                        getEntityName((Symbol.ClassSymbol) type),
+                        (Symbol.ClassSymbol) type);
+            }
+        }
+        catch (Exception e) {}
+    }
+
+    /**
+     * Add any entities among the root elements of a new
+     * processing round, or nested in them, to the index of
+     * entity classes, and index their packages again, since
+     * classes may have been entered in a package after we
+     * looked at it, and a miss in the index is definitive.
+     */
+    void addRootElements(Set<? extends Element> elements) {
+        Set<Symbol.PackageSymbol> packages = new HashSet<>();
+        for (Element element: elements) {
+            Symbol symbol = (Symbol) element;
+            packages.add(symbol.packge());
+            if (symbol instanceof Symbol.ClassSymbol) {
+                addEntityClasses((Symbol.ClassSymbol) symbol);
+            }
         }
-        else {
-            return false;
+        for (Symbol.PackageSymbol pack: packages) {
+            indexedPackages.add(pack);
+            indexEntityClasses(pack);
         }
     }
 
-    private static Symbol findProperty(Symbol.TypeSymbol type, String propertyName,
-                               AccessType defaultAccessType) {
+    private void addEntityClasses(Symbol.ClassSymbol type) {
+        if (isEntity(type)) {
+            entityClassesByName.put(getEntityName(type), type);
+        }
+        for (Symbol member: type.members()
+                .getElements(nested -> nested instanceof Symbol.ClassSymbol)) {
+            addEntityClasses((Symbol.ClassSymbol) member);
+        }
+    }
+
+    private static boolean isEntityClass(Symbol symbol) {
+        return symbol instanceof Symbol.ClassSymbol
+            && isEntity((Symbol.ClassSymbol) symbol);
+    }
+
+    private Symbol findProperty(Symbol.TypeSymbol type, String propertyName,
+                                AccessType defaultAccessType) {
+        if (!(type instanceof Symbol.ClassSymbol)) {
+            return null;
+        }
+        PropertyIndex.Property<Symbol> property =
+                propertyIndex(type, defaultAccessType).get(propertyName);
+        return property == null ? null : property.member;
+    }
+
+    private PropertyIndex<Symbol> propertyIndex(Symbol.TypeSymbol type,
+                                                AccessType defaultAccessType) {
+        return propertyIndexes.get(type, defaultAccessType);
+    }
+
+    private static PropertyIndex<Symbol> indexProperties(Symbol.TypeSymbol type,
+                                                         AccessType defaultAccessType) {
+        PropertyIndex<Symbol> index = new PropertyIndex<>();
         //iterate up the superclass hierarchy
         while (type instanceof Symbol.ClassSymbol) {
             if (isMappedClass(type)) { //ignore unmapped intervening classes
                 AccessType accessType =
                         getAccessType(type, defaultAccessType);
                 for (Symbol member: type.members()
-                        .getElements(symbol -> isMatchingProperty(
-                                symbol, propertyName, accessType))) {
-                    return member;
+                        .getElements(symbol -> isPersistable(symbol, accessType))) {
+                    index.add(propertyName(member), member,
+                            accessType, mappingKind(member));
                 }
             }
             Symbol.ClassSymbol classSymbol = (Symbol.ClassSymbol) type;
             com.sun.tools.javac.code.Type superclass = classSymbol.getSuperclass();
             type = superclass == null ? null : superclass.tsym;
         }
-        return null;
-    }
-
-    private static boolean isMatchingProperty(Symbol symbol, String propertyName,
-                                              AccessType accessType) {
-        return isPersistable(symbol, accessType)
-                && propertyName.equals(propertyName(symbol));
+        return index;
     }
 
     private static boolean isGetterMethod(Symbol.MethodSymbol method) {
@@ -514,61 +971,89 @@ class JavacSessionFactory extends MockSessionFactory {
                                  List<org.hibernate.type.Type> argumentTypes) {
         Symbol.ClassSymbol symbol = findClassByQualifiedName(qualifiedClassName);
         if (symbol==null) return false;
-        for (Symbol cons: symbol.members().getElements(Symbol::isConstructor)) {
-            Symbol.MethodSymbol constructor = (Symbol.MethodSymbol) cons;
-            if (constructor.params.length()==argumentTypes.size()) {
-                boolean argumentsCheckOut = true;
-                for (int i=0; i<argumentTypes.size(); i++) {
-                    org.hibernate.type.Type type = argumentTypes.get(i);
-                    Symbol.VarSymbol param = constructor.params.get(i);
-                    if (type instanceof PrimitiveType
-                            && param.type.isPrimitive()) {
-                        Class primitive;
-                        try {
-                            primitive = ((PrimitiveType) type).getPrimitiveClass();
-                        } catch (Exception e) {
-                            continue;
-                        }
-                        if (!toPrimitiveClass(param).equals(primitive)) {
-                            argumentsCheckOut = false;
-                            break;
-                        }
-                    } else {
-                        Symbol.TypeSymbol typeClass;
-                        if (type instanceof EntityType) {
-                            String entityName = ((EntityType) type).getAssociatedEntityName();
-                            typeClass = findEntityClass(entityName);
-                        } else if (type instanceof CompositeCustomType) {
-                            typeClass = ((Component) ((CompositeCustomType) type).getUserType()).type;
-                        } else if (type instanceof BasicType) {
-                            String className;
-                            //sadly there is no way to get the classname
-                            //from a Hibernate Type without trying to load
-                            //the class!
-                            try {
-                                className = type.getReturnedClass().getName();
-                            } catch (Exception e) {
-                                continue;
-                            }
-                            typeClass = findClassByQualifiedName(className);
-                        } else {
-                            //TODO: what other Hibernate Types do we
-                            //      need to consider here?
-                            continue;
-                        }
-                        if (typeClass != null
-                                && !typeClass.isSubClass(param.type.tsym, types)) {
-                            argumentsCheckOut = false;
-                            break;
-                        }
+        for (Symbol.VarSymbol[] params:
+                constructorsByArity
+                        .computeIfAbsent(symbol, JavacSessionFactory::indexConstructors)
+                        .getOrDefault(argumentTypes.size(), emptyList())) {
+            boolean argumentsCheckOut = true;
+            for (int i=0; i<params.length; i++) {
+                org.hibernate.type.Type type = argumentTypes.get(i);
+                Symbol.VarSymbol param = params[i];
+                if (type instanceof PrimitiveType
+                        && param.type.isPrimitive()) {
+                    Class primitive;
+                    try {
+                        primitive = ((PrimitiveType) type).getPrimitiveClass();
+                    } catch (Exception e) {
+                        continue;
+                    }
+                    if (!toPrimitiveClass(param).equals(primitive)) {
+                        argumentsCheckOut = false;
+                        break;
+                    }
+                } else {
+                    Symbol.TypeSymbol typeClass = argumentClass(type);
+                    if (typeClass != null
+                            && !typeClass.isSubClass(param.type.tsym, types)) {
+                        argumentsCheckOut = false;
+                        break;
                     }
                 }
-                if (argumentsCheckOut) return true; //matching constructor found!
             }
+            if (argumentsCheckOut) return true; //matching constructor found!
         }
         return false;
     }
 
+    /**
+     * The parameters of each constructor of the given class,
+     * grouped by number of parameters.
+     */
+    private static Map<Integer, List<Symbol.VarSymbol[]>> indexConstructors(
+            Symbol.ClassSymbol type) {
+        Map<Integer, List<Symbol.VarSymbol[]>> result = new HashMap<>();
+        for (Symbol cons: type.members().getElements(Symbol::isConstructor)) {
+            Symbol.MethodSymbol constructor = (Symbol.MethodSymbol) cons;
+            result.computeIfAbsent(constructor.params.length(),
+                    arity -> new ArrayList<>())
+                    .add(constructor.params.toArray(new Symbol.VarSymbol[0]));
+        }
+        return result;
+    }
+
+    /**
+     * The class of a Hibernate type passed as an argument to
+     * a constructor, or null if it can't be determined, in
+     * which case the argument is assumed to fit.
+     */
+    private Symbol.TypeSymbol argumentClass(org.hibernate.type.Type type) {
+        if (type instanceof EntityType) {
+            String entityName = ((EntityType) type).getAssociatedEntityName();
+            return findEntityClass(entityName);
+        } else if (type instanceof CompositeCustomType) {
+            Component component = (Component) ((CompositeCustomType) type).getUserType();
+            return component.type == null ?
+                    findClassByQualifiedName(component.className) :
+                    component.type;
+        } else if (type instanceof BasicType) {
+            return basicTypeClasses.computeIfAbsent(type, this::basicTypeClass)
+                    .orElse(null);
+        } else {
+            //TODO: what other Hibernate Types do we
+            //      need to consider here?
+            return null;
+        }
+    }
+
+    private Optional<Symbol.TypeSymbol> basicTypeClass(org.hibernate.type.Type type) {
+        try {
+            return Optional.ofNullable(
+                    findClassByQualifiedName(type.getReturnedClass().getName()));
+        } catch (Exception e) {
+            return Optional.empty();
+        }
+    }
+
     private static Class toPrimitiveClass(Symbol.VarSymbol param) {
         switch (param.type.getTag()) {
             case BOOLEAN:
@@ -596,20 +1081,37 @@ class JavacSessionFactory extends MockSessionFactory {
         return syms.classes.get(names.fromString(path));
     }
 
-    private static AccessType getDefaultAccessType(Symbol.TypeSymbol type) {
-        //iterate up the superclass hierarchy
-        while (type instanceof Symbol.ClassSymbol) {
+    /**
+     * The access type determined by the placement of the
+     * {@code @Id} annotation in the given class or in its
+     * nearest superclass which has one. It's remembered for
+     * each class along the way, so that it's found just once
+     * for a whole hierarchy.
+     */
+    private AccessType getDefaultAccessType(Symbol.TypeSymbol type) {
+        if (!(type instanceof Symbol.ClassSymbol)) {
+            return AccessType.FIELD;
+        }
+        AccessType result = defaultAccessTypes.get(type);
+        if (result == null) {
+            result = AccessType.FIELD;
+            boolean found = false;
             for (Symbol member: type.members().getElements()) {
                 if (isId(member)) {
-                    return member instanceof Symbol.MethodSymbol ?
+                    result = member instanceof Symbol.MethodSymbol ?
                             AccessType.PROPERTY : AccessType.FIELD;
+                    found = true;
+                    break;
                 }
             }
-            Symbol.ClassSymbol classSymbol = (Symbol.ClassSymbol) type;
-            com.sun.tools.javac.code.Type superclass = classSymbol.getSuperclass();
-            type = superclass == null ? null : superclass.tsym;
+            if (!found) {
+                Symbol.ClassSymbol classSymbol = (Symbol.ClassSymbol) type;
+                com.sun.tools.javac.code.Type superclass = classSymbol.getSuperclass();
+                result = getDefaultAccessType(superclass == null ? null : superclass.tsym);
+            }
+            defaultAccessTypes.put(type, result);
         }
-        return AccessType.FIELD;
+        return result;
     }
 
     private static String propertyName(Symbol symbol) {
@@ -0,0 +1,210 @@
+package org.hibernate.query.validator;
+
+/**
+ * Maps a position in the value of a string literal to the
+ * corresponding position in the source text of the literal,
+ * by walking the source text, so that a diagnostic points
+ * at the right character even when the literal contains
+ * escape sequences, or is a text block, whose indentation
+ * is stripped.
+ *
+ * A position in the value counts from 1, so that, for a
+ * literal without escapes on a single line, it is just the
+ * distance from the opening quote.
+ */
+final class LiteralPositions {
+
+    private LiteralPositions() {}
+
+    /**
+     * The position in the source of the given character of
+     * the value of the literal.
+     *
+     * @param source the source text of the compilation unit
+     * @param start the position of the opening quote
+     * @param offset the position of the character in the
+     *               value of the literal, counting from 1
+     * @return the position in the source text, or the
+     *         position of the closing quote, if the value
+     *         is not that long
+     */
+    static int position(CharSequence source, int start, int offset) {
+        if (start < 0 || start >= source.length()
+                || source.charAt(start) != '"') {
+            //not what we took it for
+            return start + offset;
+        }
+        else if (isDelimiter(source, start)) {
+            return textBlockPosition(source, start, offset);
+        }
+        else {
+            int length = source.length();
+            int pos = start + 1;
+            for (int n = 1; n < offset && pos < length; n++) {
+                char ch = source.charAt(pos);
+                if (ch == '"' || isLineTerminator(ch)) {
+                    break;
+                }
+                pos = next(source, pos);
+            }
+            return Math.min(pos, length);
+        }
+    }
+
+    private static int textBlockPosition(CharSequence source, int start, int offset) {
+        int length = source.length();
+        //the content starts on the line after the opening delimiter
+        int pos = start + 3;
+        while (pos < length && !isLineTerminator(source.charAt(pos))) {
+            pos++;
+        }
+        int lineStart = skipLineTerminator(source, pos);
+        int indent = indentation(source, lineStart);
+        int n = 1;
+        while (true) {
+            int end = lineEnd(source, lineStart);
+            boolean last = end >= length || source.charAt(end) == '"';
+            //trailing white space is stripped from each line
+            int contentEnd = end;
+            while (contentEnd > lineStart
+                    && Character.isWhitespace(source.charAt(contentEnd - 1))) {
+                contentEnd--;
+            }
+            pos = Math.min(lineStart + indent, contentEnd);
+            boolean continued = false;
+            while (pos < contentEnd) {
+                if (source.charAt(pos) == '\\' && pos + 1 == end && !last) {
+                    //an escaped line terminator joins the lines
+                    continued = true;
+                    break;
+                }
+                if (n == offset) {
+                    return pos;
+                }
+                pos = next(source, pos);
+                n++;
+            }
+            if (last) {
+                return end;
+            }
+            if (!continued) {
+                if (n == offset) {
+                    return end;
+                }
+                n++;
+            }
+            lineStart = skipLineTerminator(source, end);
+        }
+    }
+
+    /**
+     * The indentation stripped from every line of a text
+     * block, the least indentation of a line which is not
+     * blank, or of the closing delimiter.
+     */
+    private static int indentation(CharSequence source, int lineStart) {
+        int length = source.length();
+        int indent = Integer.MAX_VALUE;
+        while (lineStart < length) {
+            int end = lineEnd(source, lineStart);
+            int pos = lineStart;
+            while (pos < end && Character.isWhitespace(source.charAt(pos))) {
+                pos++;
+            }
+            boolean last = end >= length || source.charAt(end) == '"';
+            if (pos < end || last) {
+                indent = Math.min(indent, pos - lineStart);
+            }
+            if (last) {
+                break;
+            }
+            lineStart = skipLineTerminator(source, end);
+        }
+        return indent == Integer.MAX_VALUE ? 0 : indent;
+    }
+
+    /**
+     * The position of the line terminator ending the line of
+     * a text block, or of the closing delimiter.
+     */
+    private static int lineEnd(CharSequence source, int pos) {
+        int length = source.length();
+        while (pos < length) {
+            char ch = source.charAt(pos);
+            if (isLineTerminator(ch)) {
+                return pos;
+            }
+            else if (ch == '\\') {
+                if (pos + 1 < length && isLineTerminator(source.charAt(pos + 1))) {
+                    return pos + 1;
+                }
+                pos = next(source, pos);
+            }
+            else if (isDelimiter(source, pos)) {
+                return pos;
+            }
+            else {
+                pos++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * The position after the character or escape sequence
+     * at the given position.
+     */
+    private static int next(CharSequence source, int pos) {
+        int length = source.length();
+        if (source.charAt(pos) != '\\' || pos + 1 >= length) {
+            return pos + 1;
+        }
+        char ch = source.charAt(pos + 1);
+        if (ch == 'u') {
+            //a unicode escape, which may repeat the u
+            pos += 2;
+            while (pos < length && source.charAt(pos) == 'u') {
+                pos++;
+            }
+            return Math.min(pos + 4, length);
+        }
+        else if (ch >= '0' && ch <= '7') {
+            //an octal escape of up to three digits, the
+            //first of which must be at most 3 if there are
+            //three digits
+            int max = ch <= '3' ? 3 : 2;
+            int digits = 1;
+            pos += 2;
+            while (digits < max && pos < length
+                    && source.charAt(pos) >= '0' && source.charAt(pos) <= '7') {
+                pos++;
+                digits++;
+            }
+            return pos;
+        }
+        else {
+            return pos + 2;
+        }
+    }
+
+    private static boolean isDelimiter(CharSequence source, int pos) {
+        return pos + 2 < source.length()
+                && source.charAt(pos) == '"'
+                && source.charAt(pos + 1) == '"'
+                && source.charAt(pos + 2) == '"';
+    }
+
+    private static boolean isLineTerminator(char ch) {
+        return ch == '\n' || ch == '\r';
+    }
+
+    private static int skipLineTerminator(CharSequence source, int pos) {
+        if (pos < source.length() && source.charAt(pos) == '\r') {
+            pos++;
+        }
+        if (pos < source.length() && source.charAt(pos) == '\n') {
+            pos++;
+        }
+        return pos;
+    }
+}
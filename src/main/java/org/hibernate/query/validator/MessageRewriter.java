@@ -0,0 +1,121 @@
+package org.hibernate.query.validator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites the error messages reported by Hibernate's
+ * query translator into something more helpful, using
+ * a table of rewrites compiled once per JVM.
+ *
+ * @see MessageRewrites
+ */
+final class MessageRewriter {
+
+    private static final Map<String, String> BUILT_IN_REWRITES = new LinkedHashMap<>();
+    static {
+        BUILT_IN_REWRITES.put(Pattern.quote("node did not reference a map"),
+                "key(), value(), or entry() argument must be map element");
+        BUILT_IN_REWRITES.put(Pattern.quote("entry(*) expression cannot be further de-referenced"),
+                "entry() has no members");
+        BUILT_IN_REWRITES.put(Pattern.quote("FROM expected (non-filter queries must contain a FROM clause)"),
+                "missing from clause or select list");
+        //the unexpected token is a prefix of the path
+        BUILT_IN_REWRITES.put("Unable to resolve path \\[((.*).*)\\], unexpected token \\[\\2\\]",
+                "$1 is not defined");
+        BUILT_IN_REWRITES.put("Legacy-style query parameters.*",
+                "illegal token: ? (use ?1, ?2)");
+    }
+
+    static final MessageRewriter INSTANCE = new MessageRewriter();
+
+    //rewrites of messages which contain no variable
+    //text, for which a regex would be a waste of time
+    private final Map<String, String> exactRewrites = new HashMap<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final List<String> replacements = new ArrayList<>();
+
+    private MessageRewriter() {
+        try {
+            for (MessageRewrites rewrites :
+                    ServiceLoader.load(MessageRewrites.class,
+                            MessageRewrites.class.getClassLoader())) {
+                rewrites.getRewrites().forEach(this::add);
+            }
+        }
+        catch (ServiceConfigurationError e) {
+            e.printStackTrace();
+        }
+        BUILT_IN_REWRITES.forEach(this::add);
+    }
+
+    private void add(String regex, String replacement) {
+        String literal = literal(regex);
+        if (literal != null
+                && replacement.indexOf('$') < 0
+                && replacement.indexOf('\\') < 0
+                && !matchesPattern(literal)) {
+            exactRewrites.putIfAbsent(literal, replacement);
+        }
+        else {
+            patterns.add(Pattern.compile(regex));
+            replacements.add(replacement);
+        }
+    }
+
+    //an earlier rewrite takes precedence
+    private boolean matchesPattern(String message) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(message).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The text matched by the given regex, if it is a
+     * {@linkplain Pattern#quote quoted} literal, or
+     * null otherwise.
+     */
+    private static String literal(String regex) {
+        if (regex.startsWith("\\Q") && regex.endsWith("\\E")) {
+            String text = regex.substring(2, regex.length() - 2);
+            if (!text.contains("\\E")) {
+                return text;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rewrite the given message using the first rewrite
+     * which matches it, or return it unchanged if none
+     * match.
+     */
+    String rewrite(String message) {
+        if (message == null) {
+            return null;
+        }
+        String exact = exactRewrites.get(message);
+        if (exact != null) {
+            return exact;
+        }
+        for (int i = 0; i < patterns.size(); i++) {
+            Matcher matcher = patterns.get(i).matcher(message);
+            if (matcher.matches()) {
+                StringBuffer result = new StringBuffer();
+                matcher.appendReplacement(result, replacements.get(i));
+                return result.toString();
+            }
+        }
+        return message;
+    }
+}
@@ -0,0 +1,26 @@
+package org.hibernate.query.validator;
+
+import java.util.Map;
+
+/**
+ * Supplies extra rewrites for the error messages reported
+ * by Hibernate's query translator. Implementations are
+ * discovered using {@link java.util.ServiceLoader}, and
+ * must be listed in a file named
+ * {@code META-INF/services/org.hibernate.query.validator.MessageRewrites}
+ * on the annotation processor path.
+ *
+ * The rewrites are compiled once, when the first error
+ * is reported, and are consulted before the built-in
+ * rewrites.
+ */
+public interface MessageRewrites {
+
+    /**
+     * A map from a regular expression, which must match
+     * the whole of an error message, to its replacement,
+     * which may refer to the groups of the expression as
+     * {@code $1}, {@code $2}, etc.
+     */
+    Map<String, String> getRewrites();
+}
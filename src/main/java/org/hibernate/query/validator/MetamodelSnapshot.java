@@ -0,0 +1,261 @@
+package org.hibernate.query.validator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.hibernate.query.validator.HQLProcessor.SNAPSHOT_OPTION;
+import static org.hibernate.query.validator.ValidationCache.readString;
+import static org.hibernate.query.validator.ValidationCache.writeString;
+
+/**
+ * A snapshot of the metamodel resolved from the compiler's
+ * symbols, optionally kept on disk from one build to the
+ * next, so that a later build can answer questions about
+ * the entities without completing their symbols.
+ *
+ * The snapshot remembers the answers, encoded as strings
+ * by the {@link MockSessionFactory}, along with the size
+ * and a digest of the contents of every source or class
+ * file that was consulted to obtain them. When it is
+ * loaded, the whole snapshot is discarded if any of these
+ * files has changed. The modification time of a file is
+ * not trusted, since a file may be edited within the
+ * granularity of the file system's clock, or restored
+ * along with its old modification time. But a library
+ * archive is just stamped with its size and modification
+ * time, since hashing it would cost more than the snapshot
+ * saves, and the classes of the platform are ignored.
+ *
+ * @see HQLProcessor#SNAPSHOT_OPTION
+ */
+final class MetamodelSnapshot {
+
+    //kinds of answer
+    static final char ENTITY = 'E';
+    static final char PROPERTY = 'P';
+    static final char COLLECTION = 'C';
+    static final char ELEMENT_PROPERTY = 'Q';
+
+    private static final int VERSION = 3;
+
+    //the stamp of a file we can't read
+    private static final String UNKNOWN = "-";
+
+    private static final Path JAVA_HOME = javaHome();
+
+    private final Path file;
+    private final Map<String, String> answers = new ConcurrentHashMap<>();
+    private final Map<URI, String> sources = new ConcurrentHashMap<>();
+
+    private MetamodelSnapshot(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the snapshot kept in the file named by the
+     * processor option {@value HQLProcessor#SNAPSHOT_OPTION}.
+     * If the option was not specified, the snapshot is
+     * always empty, and nothing is remembered.
+     */
+    static MetamodelSnapshot open(Map<String, String> options) {
+        String fileName = options.get(SNAPSHOT_OPTION);
+        if (fileName == null || fileName.isEmpty()) {
+            return new MetamodelSnapshot(null);
+        }
+        MetamodelSnapshot snapshot = new MetamodelSnapshot(Paths.get(fileName));
+        try {
+            snapshot.load();
+        }
+        catch (IOException e) {
+            //a missing or corrupt snapshot is an empty snapshot
+            snapshot.clear();
+        }
+        return snapshot;
+    }
+
+    boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * The remembered answer to a question, or null if
+     * there is none.
+     */
+    String get(char kind, String key) {
+        return file == null ? null : answers.get(kind + key);
+    }
+
+    /**
+     * Remember the answer to a question. The files the
+     * answer was obtained from must be passed to
+     * {@link #dependOn}.
+     */
+    void put(char kind, String key, String answer) {
+        if (file != null) {
+            answers.put(kind + key, answer);
+        }
+    }
+
+    /**
+     * Remember that the snapshot depends on the contents
+     * of the given source or class file.
+     */
+    void dependOn(URI source) {
+        if (file != null && source != null
+                && !sources.containsKey(source)
+                && !isPlatform(source)) {
+            sources.put(source, stamp(source));
+        }
+    }
+
+    /**
+     * Is the given file part of the Java platform, either
+     * in the runtime image, or under the Java home?
+     */
+    private static boolean isPlatform(URI source) {
+        if ("jrt".equals(source.getScheme())) {
+            return true;
+        }
+        Path path = path(source);
+        return path != null && JAVA_HOME != null
+                && path.toAbsolutePath().startsWith(JAVA_HOME);
+    }
+
+    private static Path javaHome() {
+        String home = System.getProperty("java.home");
+        if (home == null) {
+            return null;
+        }
+        Path path = Paths.get(home).toAbsolutePath();
+        //on Java 8, java.home is the jre directory of a JDK
+        Path parent = path.getParent();
+        return path.endsWith("jre") && parent != null ? parent : path;
+    }
+
+    /**
+     * The path of a file, or of the archive containing it,
+     * or null if it is not in the file system.
+     */
+    private static Path path(URI source) {
+        try {
+            URI location = source;
+            if ("jar".equals(location.getScheme())) {
+                String path = location.getRawSchemeSpecificPart();
+                int loc = path.indexOf("!/");
+                location = new URI(loc < 0 ? path : path.substring(0, loc));
+            }
+            return "file".equals(location.getScheme()) ?
+                    Paths.get(location) : null;
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * The size and a digest of the contents of a file, or
+     * the size and modification time of the archive
+     * containing it, or {@value #UNKNOWN} if it is not a
+     * file we can read.
+     */
+    private static String stamp(URI source) {
+        try {
+            Path path = path(source);
+            if (path != null && Files.isRegularFile(path)) {
+                if ("jar".equals(source.getScheme())) {
+                    return Files.size(path) + "@"
+                            + Files.getLastModifiedTime(path).toMillis();
+                }
+                else {
+                    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                    long size = 0;
+                    try (InputStream in = Files.newInputStream(path)) {
+                        byte[] buffer = new byte[8192];
+                        for (int read; (read = in.read(buffer)) > 0;) {
+                            digest.update(buffer, 0, read);
+                            size += read;
+                        }
+                    }
+                    return size + ":" + new BigInteger(1, digest.digest()).toString(16);
+                }
+            }
+        }
+        catch (Exception e) {}
+        return UNKNOWN;
+    }
+
+    private void clear() {
+        answers.clear();
+        sources.clear();
+    }
+
+    /**
+     * Write the snapshot back to disk, if it is backed by
+     * a file.
+     */
+    void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(VERSION);
+            out.writeInt(sources.size());
+            for (Map.Entry<URI, String> source : sources.entrySet()) {
+                writeString(out, source.getKey().toString());
+                writeString(out, source.getValue());
+            }
+            out.writeInt(answers.size());
+            for (Map.Entry<String, String> answer : answers.entrySet()) {
+                writeString(out, answer.getKey());
+                writeString(out, answer.getValue());
+            }
+        }
+        Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                URI source = URI.create(readString(in));
+                String stamp = readString(in);
+                if (!stamp(source).equals(stamp)) {
+                    //something has changed since the snapshot
+                    //was taken, so none of it can be trusted
+                    clear();
+                    return;
+                }
+                sources.put(source, stamp);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                answers.put(readString(in), readString(in));
+            }
+        }
+    }
+}
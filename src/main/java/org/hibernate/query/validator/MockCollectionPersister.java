@@ -34,14 +34,14 @@ abstract class MockCollectionPersister implements QueryableCollection {
     private static final String[] INDEX_COLUMN = {"pos"};
 
     private String role;
-    private SessionFactoryImplementor factory;
+    private MockSessionFactory factory;
     private CollectionType collectionType;
     private String ownerEntityName;
     private Type elementType;
 
     MockCollectionPersister(String role, CollectionType collectionType,
                             Type elementType,
-                            SessionFactoryImplementor factory) {
+                            MockSessionFactory factory) {
         this.role = role;
         this.collectionType = collectionType;
         this.elementType = elementType;
@@ -88,7 +88,13 @@ abstract class MockCollectionPersister implements QueryableCollection {
             //      the way to CollectionPropertyMapping
             return getIndexType();
         }
-        Type type = getElementPropertyType(propertyName);
+        Type type;
+        synchronized (factory) {
+            type = getElementPropertyType(propertyName);
+        }
+        factory.recordDependency(ValidationCache.ELEMENT_PROPERTY,
+                role + '#' + propertyName,
+                ValidationCache.describe(type));
         if (type==null) {
             throw new QueryException(elementType.getName()
                     + " has no mapped "
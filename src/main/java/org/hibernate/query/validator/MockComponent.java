@@ -2,6 +2,8 @@ package org.hibernate.query.validator;
 
 import org.hibernate.HibernateException;
 import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.type.CompositeCustomType;
+import org.hibernate.type.Type;
 import org.hibernate.usertype.CompositeUserType;
 
 import java.io.Serializable;
@@ -11,6 +13,26 @@ import java.sql.SQLException;
 
 abstract class MockComponent implements CompositeUserType {
 
+    /**
+     * Can this component be shared by every entity embedding
+     * it? Not if it has a collection, directly or in a nested
+     * component, since the role of the collection depends on
+     * the embedding entity and the path to the component.
+     */
+    boolean isShareable() {
+        for (Type type: getPropertyTypes()) {
+            if (type.isCollectionType()) {
+                return false;
+            }
+            if (type instanceof CompositeCustomType
+                    && !((MockComponent) ((CompositeCustomType) type).getUserType())
+                            .isShareable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public Object getPropertyValue(Object component, int property)
             throws HibernateException {
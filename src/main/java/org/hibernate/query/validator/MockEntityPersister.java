@@ -27,6 +27,7 @@ import java.io.Serializable;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.hibernate.query.validator.MockSessionFactory.typeHelper;
 
@@ -34,11 +35,18 @@ abstract class MockEntityPersister implements EntityPersister, Queryable, Discri
 
     private static final String[] ID_COLUMN = {"id"};
 
+    //the cached type of a property which does not exist,
+    //a distinct instance, compared by identity
+    private static final Type MISSING = new ClassType();
+
     private final String entityName;
     private final MockSessionFactory factory;
     private final List<MockEntityPersister> subclassPersisters = new ArrayList<>();
     final AccessType defaultAccessType;
-    private final Map<String,Type> propertyTypesByName = new HashMap<>();
+    //the type of each property looked up so far, merging
+    //the properties of this entity and its subclasses, or
+    //MISSING if the property was found in none of them
+    private final Map<String,Type> propertyTypesByName = new ConcurrentHashMap<>();
 
     MockEntityPersister(String entityName,
                         AccessType defaultAccessType,
@@ -49,27 +57,36 @@ abstract class MockEntityPersister implements EntityPersister, Queryable, Discri
     }
 
     void initSubclassPersisters() {
-        for (MockEntityPersister other: factory.getMockEntityPersisters()) {
-            other.addPersister(this);
-            this.addPersister(other);
-        }
+        factory.addToHierarchy(this);
     }
 
-    private void addPersister(MockEntityPersister entityPersister) {
-        if (isSubclassPersister(entityPersister)) {
-            subclassPersisters.add(entityPersister);
-        }
+    void addSubclassPersister(MockEntityPersister entityPersister) {
+        subclassPersisters.add(entityPersister);
+        //a property missing until now might belong
+        //to the new subclass
+        propertyTypesByName.values().removeIf(type -> type == MISSING);
     }
 
     private Type getSubclassPropertyType(String propertyPath) {
-        return subclassPersisters.stream()
-                .map(sp -> sp.getPropertyType(propertyPath))
-                .filter(Objects::nonNull)
-                .findAny()
-                .orElse(null);
+        for (MockEntityPersister subclassPersister: subclassPersisters) {
+            Type type = subclassPersister.getPropertyType(propertyPath);
+            if (type != null) {
+                return type;
+            }
+        }
+        return null;
     }
 
-    abstract boolean isSubclassPersister(MockEntityPersister entityPersister);
+    /**
+     * The qualified name of the entity class.
+     */
+    abstract String getEntityClassName();
+
+    /**
+     * The qualified names of the superclasses of the entity
+     * class, used to find the persisters of its subclasses.
+     */
+    abstract Collection<String> getEntitySuperclassNames();
 
     @Override
     public SessionFactoryImplementor getFactory() {
@@ -89,19 +106,25 @@ abstract class MockEntityPersister implements EntityPersister, Queryable, Discri
     @Override
     public final Type getPropertyType(String propertyPath) throws MappingException {
         Type result = propertyTypesByName.get(propertyPath);
-        if (result!=null) {
-            return result;
-        }
-
-        result = createPropertyType(propertyPath);
-        if (result == null) {
-            //check subclasses, needed for treat()
-            result = getSubclassPropertyType(propertyPath);
+        if (result==null) {
+            synchronized (factory) {
+                result = createPropertyType(propertyPath);
+                if (result == null) {
+                    //check subclasses, needed for treat()
+                    result = getSubclassPropertyType(propertyPath);
+                }
+                //cache a missing property too, since it's
+                //the usual case for treat() and bad queries
+                propertyTypesByName.put(propertyPath,
+                        result == null ? MISSING : result);
+            }
         }
-
-        if (result!=null) {
-            propertyTypesByName.put(propertyPath, result);
+        else if (result == MISSING) {
+            result = null;
         }
+        factory.recordDependency(ValidationCache.PROPERTY,
+                entityName + '#' + propertyPath,
+                ValidationCache.describe(result));
         return result;
     }
 
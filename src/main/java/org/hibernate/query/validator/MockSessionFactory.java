@@ -43,7 +43,8 @@ import javax.persistence.Query;
 import javax.persistence.criteria.CriteriaBuilder;
 import java.sql.Connection;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 import static java.util.Collections.*;
 import static org.hibernate.internal.util.StringHelper.isEmpty;
@@ -55,10 +56,38 @@ abstract class MockSessionFactory implements SessionFactoryImplementor {
 
     static final CustomType UNKNOWN_TYPE = new CustomType(new MockUserType());
 
-    private final Map<String,MockEntityPersister> entityPersistersByName = new HashMap<>();
-    private final Map<String,MockCollectionPersister> collectionPersistersByName = new HashMap<>();
-    private final Set<String> unknownFunctions = new HashSet<>();
-    private final List<String> functionWhitelist;
+    //these are read without holding the lock, but only
+    //written while holding it (see createEntityPersister())
+    private final Map<String,MockEntityPersister> entityPersistersByName = new ConcurrentHashMap<>();
+    private final Map<String,MockCollectionPersister> collectionPersistersByName = new ConcurrentHashMap<>();
+
+    //an index of the entity hierarchy: the persisters for
+    //each entity class, and the persisters for the entities
+    //extending each class, directly or indirectly, keyed by
+    //class name, and only accessed while holding the lock
+    private final Map<String,List<MockEntityPersister>> entityPersistersByClassName = new HashMap<>();
+    private final Map<String,List<MockEntityPersister>> entityPersistersBySuperclassName = new HashMap<>();
+
+    //the type of each embeddable class for each default
+    //access type, shared by every entity embedding it
+    private final Map<Object,Map<AccessType,CompositeCustomType>> componentTypes = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<QueryState> queryState =
+            ThreadLocal.withInitial(QueryState::new);
+
+    /**
+     * The state belonging to the query that is being
+     * validated by a certain thread.
+     */
+    private static final class QueryState {
+        private FunctionCatalog functionCatalog;
+        private ParseErrorHandler handler;
+        private ValidationCache.Recording recording;
+        private final Set<String> unknownFunctions = new HashSet<>();
+    }
+
+    //one catalog for each distinct whitelist
+    private final Map<Set<String>,FunctionCatalog> functionCatalogs = new ConcurrentHashMap<>();
 
     private static final TypeConfiguration typeConfiguration = new TypeConfiguration();
 
@@ -101,11 +130,185 @@ abstract class MockSessionFactory implements SessionFactoryImplementor {
                 }
             };
 
-    private ParseErrorHandler handler;
+    /**
+     * Set the SQL functions which are passed through
+     * without a warning, for the queries which occur
+     * in the element that is about to be checked by
+     * the current thread.
+     */
+    void setFunctionWhitelist(Set<String> functionWhitelist) {
+        QueryState state = queryState.get();
+        if (state.functionCatalog == null
+                || state.functionCatalog.getWhitelist() != functionWhitelist) {
+            state.functionCatalog = getFunctionCatalog(functionWhitelist);
+        }
+    }
+
+    private FunctionCatalog getFunctionCatalog(Set<String> functionWhitelist) {
+        return functionCatalogs.computeIfAbsent(functionWhitelist,
+                whitelist -> new FunctionCatalog(
+                        getJdbcServices().getDialect().getFunctions(),
+                        OPTIONS.getCustomSqlFunctionMap(),
+                        whitelist));
+    }
+
+    private FunctionCatalog getFunctionCatalog() {
+        QueryState state = queryState.get();
+        if (state.functionCatalog == null) {
+            state.functionCatalog = getFunctionCatalog(emptySet());
+        }
+        return state.functionCatalog;
+    }
+
+    /**
+     * Route diagnostics for the query that is about to
+     * be validated by the current thread to the given
+     * handler. The persisters built so far are kept,
+     * since they don't depend on the query.
+     */
+    void setHandler(ParseErrorHandler handler) {
+        QueryState state = queryState.get();
+        state.handler = handler;
+        state.unknownFunctions.clear();
+    }
+
+    /**
+     * Record the lookups made while validating the query
+     * that is about to be validated by the current thread,
+     * so that its result may be cached.
+     */
+    void setRecording(ValidationCache.Recording recording) {
+        queryState.get().recording = recording;
+    }
+
+    /**
+     * A key identifying the function whitelist of the
+     * current thread.
+     *
+     * @see FunctionCatalog#getWhitelistKey()
+     */
+    String getFunctionWhitelistKey() {
+        return getFunctionCatalog().getWhitelistKey();
+    }
+
+    void recordDependency(char kind, String key, String result) {
+        ValidationCache.Recording recording = queryState.get().recording;
+        if (recording != null) {
+            recording.depend(kind, key, result);
+        }
+    }
+
+    /**
+     * Repeat a lookup recorded by {@link #recordDependency}.
+     *
+     * @return the result of the lookup, or null if the key
+     *         is malformed
+     */
+    synchronized String lookup(char kind, String key) {
+        int loc = key.indexOf('#');
+        switch (kind) {
+            case ValidationCache.ENTITY:
+                return createEntityPersister(key) == null ?
+                        ValidationCache.ABSENT : ValidationCache.PRESENT;
+            case ValidationCache.PROPERTY: {
+                EntityPersister persister =
+                        createEntityPersister(key.substring(0, loc));
+                return persister == null ? ValidationCache.ABSENT :
+                        ValidationCache.describe(persister.getPropertyType(
+                                key.substring(loc + 1)));
+            }
+            case ValidationCache.COLLECTION:
+                return describe(createCollectionPersister(key));
+            case ValidationCache.ELEMENT_PROPERTY: {
+                MockCollectionPersister persister = (MockCollectionPersister)
+                        createCollectionPersister(key.substring(0, loc));
+                return persister == null ? ValidationCache.ABSENT :
+                        ValidationCache.describe(persister.getElementPropertyType(
+                                key.substring(loc + 1)));
+            }
+            case ValidationCache.CLASS:
+                return isClassDefined(key) ?
+                        ValidationCache.PRESENT : ValidationCache.ABSENT;
+            case ValidationCache.FIELD:
+                return isFieldDefined(key.substring(0, loc), key.substring(loc + 1)) ?
+                        ValidationCache.PRESENT : ValidationCache.ABSENT;
+            case ValidationCache.CONSTRUCTOR: {
+                List<Type> argumentTypes = new ArrayList<>();
+                if (loc + 1 < key.length()) {
+                    for (String argumentType : key.substring(loc + 1).split(",")) {
+                        Type type = ValidationCache.resolve(argumentType);
+                        if (type == null) {
+                            return null;
+                        }
+                        argumentTypes.add(type);
+                    }
+                }
+                return isConstructorDefined(key.substring(0, loc), argumentTypes) ?
+                        ValidationCache.PRESENT : ValidationCache.ABSENT;
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static String describe(CollectionPersister persister) {
+        return persister == null ? ValidationCache.ABSENT :
+                persister.getCollectionType().getClass().getSimpleName()
+                        + ValidationCache.describe(persister.getElementType());
+    }
+
+    /**
+     * Determine if the given class exists, recording the
+     * lookup if the result of the query is being cached.
+     */
+    boolean classExists(String qualifiedName) {
+        boolean result;
+        synchronized (this) {
+            result = isClassDefined(qualifiedName);
+        }
+        recordDependency(ValidationCache.CLASS, qualifiedName,
+                result ? ValidationCache.PRESENT : ValidationCache.ABSENT);
+        return result;
+    }
+
+    /**
+     * Determine if the given field exists, recording the
+     * lookup if the result of the query is being cached.
+     */
+    boolean fieldExists(String qualifiedClassName, String fieldName) {
+        boolean result;
+        synchronized (this) {
+            result = isFieldDefined(qualifiedClassName, fieldName);
+        }
+        recordDependency(ValidationCache.FIELD, qualifiedClassName + '#' + fieldName,
+                result ? ValidationCache.PRESENT : ValidationCache.ABSENT);
+        return result;
+    }
 
-    MockSessionFactory(List<String> functionWhitelist, ParseErrorHandler handler) {
-        this.functionWhitelist = functionWhitelist;
-        this.handler = handler;
+    /**
+     * Determine if the given constructor exists, recording
+     * the lookup if the result of the query is being cached.
+     */
+    boolean constructorExists(String qualifiedClassName, List<Type> argumentTypes) {
+        boolean result;
+        synchronized (this) {
+            result = isConstructorDefined(qualifiedClassName, argumentTypes);
+        }
+        if (queryState.get().recording != null) {
+            StringJoiner key = new StringJoiner(",", qualifiedClassName + '#', "");
+            for (Type type: argumentTypes) {
+                String description = ValidationCache.describe(type);
+                if (ValidationCache.resolve(description) == null) {
+                    //we can't repeat this lookup
+                    recordDependency(ValidationCache.CONSTRUCTOR, null, null);
+                    return result;
+                }
+                key.add(description);
+            }
+            recordDependency(ValidationCache.CONSTRUCTOR, key.toString(),
+                    result ? ValidationCache.PRESENT : ValidationCache.ABSENT);
+        }
+        return result;
     }
 
     static CollectionType createCollectionType(String role, String name) {
@@ -138,6 +341,12 @@ abstract class MockSessionFactory implements SessionFactoryImplementor {
      */
     abstract MockCollectionPersister createMockCollectionPersister(String role);
 
+    /**
+     * The methods which look at the compiler's model of
+     * the program are only called while holding the lock
+     * on the factory, since the compiler's symbol tables
+     * are not thread safe.
+     */
     abstract boolean isClassDefined(String qualifiedName);
 
     abstract boolean isFieldDefined(String qualifiedClassName, String fieldName);
@@ -146,25 +355,90 @@ abstract class MockSessionFactory implements SessionFactoryImplementor {
 
     private EntityPersister createEntityPersister(String entityName) {
         MockEntityPersister result = entityPersistersByName.get(entityName);
-        if (result!=null) return result;
-        result = createMockEntityPersister(entityName);
-        entityPersistersByName.put(entityName, result);
+        if (result==null) {
+            synchronized (this) {
+                result = entityPersistersByName.get(entityName);
+                if (result==null) {
+                    result = createMockEntityPersister(entityName);
+                    if (result!=null) {
+                        entityPersistersByName.put(entityName, result);
+                    }
+                }
+            }
+        }
+        recordDependency(ValidationCache.ENTITY, entityName,
+                result == null ? ValidationCache.ABSENT : ValidationCache.PRESENT);
         return result;
     }
 
     private CollectionPersister createCollectionPersister(String entityName) {
         MockCollectionPersister result = collectionPersistersByName.get(entityName);
-        if (result!=null) return result;
-        result = createMockCollectionPersister(entityName);
-        collectionPersistersByName.put(entityName, result);
+        if (result==null) {
+            synchronized (this) {
+                result = collectionPersistersByName.get(entityName);
+                if (result==null) {
+                    result = createMockCollectionPersister(entityName);
+                    if (result!=null) {
+                        collectionPersistersByName.put(entityName, result);
+                    }
+                }
+            }
+        }
+        recordDependency(ValidationCache.COLLECTION, entityName, describe(result));
+        return result;
+    }
+
+    /**
+     * The type of a property whose class is the given
+     * embeddable, created by the given supplier the first time
+     * the embeddable is seen with the given default access
+     * type, and reused for every entity embedding it after
+     * that, unless the component can't be shared.
+     *
+     * @see MockComponent#isShareable()
+     */
+    CompositeCustomType componentType(Object embeddable,
+                                      AccessType defaultAccessType,
+                                      Supplier<CompositeCustomType> supplier) {
+        Map<AccessType,CompositeCustomType> byAccessType =
+                componentTypes.computeIfAbsent(embeddable,
+                        type -> new ConcurrentHashMap<>());
+        CompositeCustomType result = byAccessType.get(defaultAccessType);
+        if (result == null) {
+            result = supplier.get();
+            if (((MockComponent) result.getUserType()).isShareable()) {
+                byAccessType.putIfAbsent(defaultAccessType, result);
+            }
+        }
         return result;
     }
 
-    List<MockEntityPersister> getMockEntityPersisters() {
-        return entityPersistersByName.values()
-                .stream()
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList());
+    /**
+     * Link a new persister with the persisters for the entities
+     * it extends, and for the entities which extend it, visiting
+     * only those persisters, and add it to the index of the
+     * entity hierarchy. Called while holding the lock.
+     */
+    void addToHierarchy(MockEntityPersister persister) {
+        String className = persister.getEntityClassName();
+        for (MockEntityPersister subclassPersister:
+                entityPersistersBySuperclassName.getOrDefault(className, emptyList())) {
+            persister.addSubclassPersister(subclassPersister);
+        }
+        for (String superclassName: persister.getEntitySuperclassNames()) {
+            if (!superclassName.equals(className)) {
+                for (MockEntityPersister superclassPersister:
+                        entityPersistersByClassName.getOrDefault(superclassName, emptyList())) {
+                    superclassPersister.addSubclassPersister(persister);
+                }
+                entityPersistersBySuperclassName
+                        .computeIfAbsent(superclassName, name -> new ArrayList<>())
+                        .add(persister);
+            }
+        }
+        entityPersistersByClassName
+                .computeIfAbsent(className, name -> new ArrayList<>())
+                .add(persister);
     }
 
     @SuppressWarnings("deprecation")
@@ -340,29 +614,41 @@ abstract class MockSessionFactory implements SessionFactoryImplementor {
         return OPTIONS.getCurrentTenantIdentifierResolver();
     }
 
-    @Override
-    public SQLFunctionRegistry getSqlFunctionRegistry() {
-        return new SQLFunctionRegistry(getJdbcServices().getDialect(),
-                OPTIONS.getCustomSqlFunctionMap()) {
-            @Override
-            public SQLFunction findSQLFunction(String functionName) {
-                if (isEmpty(functionName)) {
-                    return null;
-                }
-                SQLFunction sqlFunction = super.findSQLFunction(functionName);
-                if (sqlFunction==null) {
-                    if (!functionWhitelist.contains(functionName)
-                            && unknownFunctions.add(functionName)) {
-                        handler.reportWarning(functionName
-                                + " is not defined (add it to whitelist)");
+    //the functions are looked up in the FunctionCatalog
+    //of the current thread, not in the registry itself
+    private final SQLFunctionRegistry sqlFunctionRegistry =
+            new SQLFunctionRegistry(getJdbcServices().getDialect(),
+                    OPTIONS.getCustomSqlFunctionMap()) {
+                @Override
+                public SQLFunction findSQLFunction(String functionName) {
+                    if (isEmpty(functionName)) {
+                        return null;
+                    }
+                    FunctionCatalog catalog = getFunctionCatalog();
+                    SQLFunction sqlFunction = catalog.find(functionName);
+                    if (sqlFunction==null) {
+                        QueryState state = queryState.get();
+                        if (!catalog.isWhitelisted(functionName)
+                                && state.unknownFunctions.add(functionName)) {
+                            state.handler.reportWarning(functionName
+                                    + " is not defined (add it to whitelist)");
+                        }
+                        return UNKNOWN_SQL_FUNCTION;
+                    }
+                    else {
+                        return sqlFunction;
                     }
-                    return UNKNOWN_SQL_FUNCTION;
                 }
-                else {
-                    return sqlFunction;
+
+                @Override
+                public boolean hasFunction(String functionName) {
+                    return getFunctionCatalog().find(functionName) != null;
                 }
-            }
-        };
+            };
+
+    @Override
+    public SQLFunctionRegistry getSqlFunctionRegistry() {
+        return sqlFunctionRegistry;
     }
 
     @Override
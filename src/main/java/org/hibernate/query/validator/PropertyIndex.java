@@ -0,0 +1,118 @@
+package org.hibernate.query.validator;
+
+import javax.persistence.AccessType;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import static java.util.Collections.unmodifiableCollection;
+
+/**
+ * The persistent properties of a mapped class, including
+ * those inherited from its mapped superclasses, indexed by
+ * name, so that resolving each segment of a property path
+ * is a single hash probe, instead of a scan of the members
+ * of every class in the hierarchy.
+ *
+ * When a subclass and a superclass declare a property with
+ * the same name, the property of the subclass is the one
+ * which is indexed, just as it is the first one found by a
+ * walk up the hierarchy.
+ *
+ * @param <M> the compiler's representation of a member
+ *
+ * @see JavacSessionFactory
+ * @see ECJSessionFactory
+ */
+final class PropertyIndex<M> {
+
+    /**
+     * How a property is mapped.
+     */
+    enum Kind {
+        BASIC,
+        EMBEDDED,
+        TO_ONE,
+        TO_MANY,
+        ELEMENT_COLLECTION
+    }
+
+    /**
+     * A persistent property of a mapped class.
+     */
+    static final class Property<M> {
+        final String name;
+        final M member;
+        /**
+         * The access type of the class declaring the member.
+         */
+        final AccessType accessType;
+        final Kind kind;
+
+        Property(String name, M member, AccessType accessType, Kind kind) {
+            this.name = name;
+            this.member = member;
+            this.accessType = accessType;
+            this.kind = kind;
+        }
+    }
+
+    private final Map<String, Property<M>> properties = new LinkedHashMap<>();
+
+    /**
+     * Add a property, unless a property with the same name
+     * was already added by a subclass.
+     */
+    void add(String name, M member, AccessType accessType, Kind kind) {
+        properties.putIfAbsent(name, new Property<>(name, member, accessType, kind));
+    }
+
+    /**
+     * The property with the given name, or null if there is
+     * no such persistent property.
+     */
+    Property<M> get(String name) {
+        return properties.get(name);
+    }
+
+    /**
+     * Every property, in the order in which it was added.
+     */
+    Collection<Property<M>> properties() {
+        return unmodifiableCollection(properties.values());
+    }
+
+    /**
+     * The indexes built so far, one for each class and each
+     * default access type. Each session factory has its own
+     * cache, so the indexes are built once per compilation.
+     *
+     * @param <T> the compiler's representation of a class
+     * @param <M> the compiler's representation of a member
+     */
+    static final class Cache<T, M> {
+        //only accessed while holding its own lock
+        private final Map<T, Map<AccessType, PropertyIndex<M>>> indexes =
+                new HashMap<>();
+        private final BiFunction<T, AccessType, PropertyIndex<M>> builder;
+
+        /**
+         * @param builder builds the index for a class, given
+         *                the default access type
+         */
+        Cache(BiFunction<T, AccessType, PropertyIndex<M>> builder) {
+            this.builder = builder;
+        }
+
+        PropertyIndex<M> get(T type, AccessType defaultAccessType) {
+            synchronized (indexes) {
+                return indexes.computeIfAbsent(type, t -> new EnumMap<>(AccessType.class))
+                        .computeIfAbsent(defaultAccessType,
+                                accessType -> builder.apply(type, accessType));
+            }
+        }
+    }
+}
@@ -1,69 +1,172 @@
 package org.hibernate.query.validator;
 
+import antlr.CharScanner;
+import antlr.InputBuffer;
+import antlr.LexerSharedInputState;
 import antlr.NoViableAltException;
 import antlr.RecognitionException;
-import antlr.Token;
-import antlr.TokenStream;
+import antlr.TokenStreamException;
 import antlr.collections.AST;
 import org.hibernate.HibernateException;
 import org.hibernate.QueryException;
-import org.hibernate.hql.internal.antlr.HqlBaseLexer;
 import org.hibernate.hql.internal.antlr.HqlTokenTypes;
 import org.hibernate.hql.internal.ast.*;
 import org.hibernate.hql.internal.ast.util.ASTUtil;
 import org.hibernate.hql.internal.ast.util.NodeTraverser;
 
-import java.io.StringReader;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static java.lang.Integer.parseInt;
+import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
-import static java.util.regex.Pattern.compile;
+import static java.util.Comparator.comparingInt;
 import static java.util.stream.Stream.concat;
 import static org.hibernate.internal.util.StringHelper.qualifier;
 import static org.hibernate.internal.util.StringHelper.unqualify;
 
 class Validation {
 
+    /**
+     * Receives the diagnostics for a query. Positions in the
+     * query count from 1, across lines, and the position of
+     * a {@link RecognitionException} is reported as a column
+     * of the first line.
+     *
+     * @see LiteralPositions
+     */
     interface Handler extends ParseErrorHandler {
         void error(int start, int end, String message);
         void warn(int start, int end, String message);
     }
 
+    /**
+     * The outcome of validating a query, which depends only
+     * on the text of the query, and not on where it occurs,
+     * nor on the arguments bound to its parameters.
+     */
+    static final class Result {
+        final Diagnostics diagnostics;
+        /**
+         * The parameters of the query, or null if the query
+         * could not be parsed.
+         */
+        final List<Parameter> parameters;
+
+        Result(Diagnostics diagnostics, List<Parameter> parameters) {
+            this.diagnostics = diagnostics;
+            this.parameters = parameters;
+        }
+    }
+
+    /**
+     * An occurrence of a parameter in a query.
+     */
+    static final class Parameter {
+        static final char NAMED = 'N';
+        static final char ORDINAL = 'O';
+        static final char OTHER = 'X';
+
+        final char kind;
+        final String prefix;
+        final String text;
+        /**
+         * The position of the prefix of the parameter in the
+         * text of the query, counting from 1, across lines.
+         *
+         * @see Validation#offset(String, int, int)
+         */
+        final int offset;
+
+        Parameter(char kind, String prefix, String text, int offset) {
+            this.kind = kind;
+            this.prefix = prefix;
+            this.text = text;
+            this.offset = offset;
+        }
+    }
+
     static void validate(String hql, boolean checkParams,
                          Set<Integer> setParameterLabels,
                          Set<String> setParameterNames,
                          Handler handler,
                          MockSessionFactory factory) {
+        report(check(hql, factory), checkParams,
+                setParameterLabels, setParameterNames, handler);
+    }
+
+    /**
+     * Validate the query, reusing the result recorded in the
+     * given cache if nothing it depends on has changed, or
+     * recording the result if not.
+     */
+    static void validate(String hql, boolean checkParams,
+                         Set<Integer> setParameterLabels,
+                         Set<String> setParameterNames,
+                         Handler handler,
+                         MockSessionFactory factory,
+                         ValidationCache cache) {
+        String key = ValidationCache.key(hql, factory.getFunctionWhitelistKey());
+        Result result = cache.get(key, factory);
+        if (result == null) {
+            ValidationCache.Recording recording = new ValidationCache.Recording();
+            factory.setRecording(recording);
+            try {
+                result = check(hql, factory);
+            }
+            finally {
+                factory.setRecording(null);
+            }
+            cache.put(key, recording, result);
+        }
+        report(result, checkParams, setParameterLabels, setParameterNames, handler);
+    }
 
-        handler = new Filter(handler);
+    /**
+     * Report the diagnostics for a query to the given
+     * handler, and check the parameters of the query
+     * against the arguments bound at this occurrence.
+     */
+    static void report(Result result, boolean checkParams,
+                       Set<Integer> setParameterLabels,
+                       Set<String> setParameterNames,
+                       Handler handler) {
+        result.diagnostics.replay(handler);
+        if (checkParams && result.parameters != null) {
+            checkParameters(result.parameters,
+                    setParameterLabels, setParameterNames,
+                    handler);
+        }
+    }
+
+    /**
+     * Parse and walk the query, collecting its diagnostics.
+     */
+    static Result check(String hql, MockSessionFactory factory) {
+
+        Diagnostics diagnostics = new Diagnostics();
+        Context context = CONTEXT.get();
+        Handler handler = context.reset(hql, diagnostics, factory);
+        factory.setHandler(handler);
+        List<Parameter> parameters = null;
 
         try {
 
-            HqlParser parser = HqlParser.getInstance(hql);
-            setHandler(parser, handler);
-            parser.statement();
+            HqlParser parser = parse(context, hql, handler);
 
             if (handler.getErrorCount() == 0) {
-                new NodeTraverser(new JavaConstantConverter(factory))
-                        .traverseDepthFirst(parser.getAST());
+                //collects the parameters and converts the
+                //Java constants in a single pass
+                context.traverser.traverseDepthFirst(parser.getAST());
+                parameters = context.collector.parameters();
 
                 HqlSqlWalker walker = new HqlSqlWalker(
                         new QueryTranslatorImpl("", hql, emptyMap(), factory),
                         factory, parser, emptyMap(), null);
-                walker.setASTFactory(new SqlASTFactory(walker) {
-                    @Override
-                    public Class getASTNodeType(int tokenType) {
-                        return tokenType == CONSTRUCTOR ?
-                                WorkaroundConstructorNode.class :
-                                super.getASTNodeType(tokenType);
-                    }
-                });
+                walker.setASTFactory(new WorkaroundASTFactory(walker));
                 setHandler(walker, handler);
                 try {
                     walker.statement(parser.getAST());
@@ -77,98 +180,328 @@ class Validation {
                     //since I guess they represent bugs in Hibernate
 //                    e.printStackTrace();
                 }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            factory.setHandler(null);
+            context.reset(null, null, null);
+        }
 
-                if (checkParams) {
-                    try {
-                        String unsetParams = null;
-                        String notSet = null;
-                        int start = -1;
-                        int end = -1;
-                        List<String> names = new ArrayList<>();
-                        List<Integer> labels = new ArrayList<>();
-                        TokenStream tokens = new HqlBaseLexer(new StringReader(hql));
-                        loop:
-                        while (true) {
-                            Token token = tokens.nextToken();
-                            switch (token.getType()) {
-                                case HqlTokenTypes.EOF:
-                                    break loop;
-                                case HqlTokenTypes.PARAM:
-                                case HqlTokenTypes.COLON:
-                                    Token next = tokens.nextToken();
-                                    String text = next.getText();
-                                    switch (token.getType()) {
-                                        case HqlTokenTypes.COLON:
-                                            if (next.getType() == HqlTokenTypes.IDENT) {
-                                                names.add(text);
-                                                if (setParameterNames.contains(text)) {
-                                                    continue;
-                                                }
-                                            }
-                                            break;
-                                        case HqlTokenTypes.PARAM:
-                                            if (next.getType() == HqlTokenTypes.NUM_INT) {
-                                                int label;
-                                                try {
-                                                    label = parseInt(text);
-                                                } catch (NumberFormatException nfe) {
-                                                    continue;
-                                                }
-                                                labels.add(label);
-                                                if (setParameterLabels.contains(label)) {
-                                                    continue;
-                                                }
-                                            }
-                                            break;
-                                        default:
-                                            continue;
-                                    }
-                                    notSet = unsetParams == null ? " is not set" : " are not set";
-                                    unsetParams = unsetParams == null ? "" : unsetParams + ", ";
-                                    unsetParams += token.getText() + text;
-                                    if (start == -1)
-                                        start = token.getColumn(); //TODO: wrong for multiline query strings!
-                                    end = token.getColumn() + text.length();
-                                    break;
-                            }
+        return new Result(diagnostics, parameters);
+    }
+
+    private static void checkParameters(List<Parameter> parameters,
+                                        Set<Integer> setParameterLabels,
+                                        Set<String> setParameterNames,
+                                        Handler handler) {
+        try {
+            String unsetParams = null;
+            String notSet = null;
+            int start = -1;
+            int end = -1;
+            List<String> names = new ArrayList<>();
+            List<Integer> labels = new ArrayList<>();
+            for (Parameter parameter : parameters) {
+                String text = parameter.text;
+                switch (parameter.kind) {
+                    case Parameter.NAMED:
+                        names.add(text);
+                        if (setParameterNames.contains(text)) {
+                            continue;
                         }
-                        if (unsetParams != null) {
-                            handler.warn(start, end, unsetParams + notSet);
+                        break;
+                    case Parameter.ORDINAL:
+                        int label = parseInt(text);
+                        labels.add(label);
+                        if (setParameterLabels.contains(label)) {
+                            continue;
                         }
+                        break;
+                }
+                notSet = unsetParams == null ? " is not set" : " are not set";
+                unsetParams = unsetParams == null ? "" : unsetParams + ", ";
+                unsetParams += parameter.prefix + text;
+                if (start == -1)
+                    start = parameter.offset;
+                end = parameter.offset + text.length();
+            }
+            if (unsetParams != null) {
+                handler.warn(start, end, unsetParams + notSet);
+            }
 
-                        setParameterNames.removeAll(names);
-                        setParameterLabels.removeAll(labels);
-
-                        int count = setParameterNames.size() + setParameterLabels.size();
-                        if (count > 0) {
-                            String missingParams =
-                                    concat(setParameterNames.stream().map(name -> ":" + name),
-                                            setParameterLabels.stream().map(label -> "?" + label))
-                                            .reduce((x, y) -> x + ", " + y)
-                                            .orElse(null);
-                            String notOccur =
-                                    count == 1 ?
-                                            " does not occur in the query" :
-                                            " do not occur in the query";
-                            handler.reportWarning(missingParams + notOccur);
-                        }
-                    } finally {
-                        setParameterNames.clear();
-                        setParameterLabels.clear();
+            setParameterNames.removeAll(names);
+            setParameterLabels.removeAll(labels);
+
+            int count = setParameterNames.size() + setParameterLabels.size();
+            if (count > 0) {
+                String missingParams =
+                        concat(setParameterNames.stream().map(name -> ":" + name),
+                                setParameterLabels.stream().map(label -> "?" + label))
+                                .reduce((x, y) -> x + ", " + y)
+                                .orElse(null);
+                String notOccur =
+                        count == 1 ?
+                                " does not occur in the query" :
+                                " do not occur in the query";
+                handler.reportWarning(missingParams + notOccur);
+            }
+        } finally {
+            setParameterNames.clear();
+            setParameterLabels.clear();
+        }
+    }
+
+    /**
+     * Parse the query, through the state of the current
+     * thread, just as {@link #check} does, reporting any
+     * syntax error to the given handler.
+     *
+     * @return the tree built by the parser
+     */
+    static AST parse(String hql, Handler handler)
+            throws RecognitionException, TokenStreamException {
+        Context context = CONTEXT.get();
+        try {
+            return parse(context, hql, context.reset(hql, handler, null)).getAST();
+        }
+        finally {
+            context.reset(null, null, null);
+        }
+    }
+
+    private static HqlParser parse(Context context, String hql, Handler handler)
+            throws RecognitionException, TokenStreamException {
+        HqlParser parser = HqlParser.getInstance(hql);
+        context.read(parser, hql);
+        setHandler(parser, handler);
+        parser.statement();
+        return parser;
+    }
+
+    /**
+     * The state a thread reuses from one query to the next:
+     * the error handler, the input of the lexer, and the
+     * visitors of the tree built by the parser.
+     */
+    private static final class Context {
+        private final Filter handler = new Filter();
+        private final QueryBuffer buffer = new QueryBuffer();
+        private final LexerSharedInputState input = new LexerSharedInputState(buffer);
+        private final ParameterCollector collector = new ParameterCollector();
+        private final JavaConstantConverter converter = new JavaConstantConverter();
+        private final NodeTraverser traverser = new NodeTraverser(node -> {
+            collector.visit(node);
+            converter.visit(node);
+        });
+
+        private Handler reset(String hql, Handler delegate, MockSessionFactory factory) {
+            handler.reset(delegate, hql);
+            collector.reset(hql);
+            converter.reset(factory);
+            return handler;
+        }
+
+        /**
+         * Make the lexer of the given parser read the query
+         * straight from its text, instead of through the
+         * reader it was created with.
+         */
+        private void read(HqlParser parser, CharSequence hql) {
+            buffer.reset(hql);
+            input.reset();
+            CharScanner lexer = (CharScanner)
+                    parser.getInputState().getInput().getInput();
+            lexer.setInputState(input);
+        }
+    }
+
+    /**
+     * The input of the lexer, indexing directly into the text
+     * of the query, where ANTLR's own {@code CharBuffer} would
+     * copy each character from a synchronized reader into a
+     * queue. Marks are just positions in the text.
+     */
+    private static final class QueryBuffer extends InputBuffer {
+        private CharSequence text = "";
+        private int position;
+
+        private void reset(CharSequence text) {
+            this.text = text;
+            position = 0;
+            nMarkers = 0;
+        }
+
+        @Override
+        public char LA(int i) {
+            int index = position + i - 1;
+            return index < text.length() ?
+                    text.charAt(index) : CharScanner.EOF_CHAR;
+        }
+
+        @Override
+        public void consume() {
+            position++;
+        }
+
+        @Override
+        public void fill(int amount) {}
+
+        @Override
+        public int mark() {
+            nMarkers++;
+            return position;
+        }
+
+        @Override
+        public void rewind(int mark) {
+            nMarkers--;
+            position = mark;
+        }
+
+        @Override
+        public void commit() {
+            nMarkers--;
+        }
+
+        @Override
+        public boolean isMarked() {
+            return nMarkers != 0;
+        }
+
+        @Override
+        public void reset() {
+            position = 0;
+            nMarkers = 0;
+        }
+
+        @Override
+        public String getLAChars() {
+            return text.subSequence(Math.min(position, text.length()),
+                    text.length()).toString();
+        }
+
+        @Override
+        public String getMarkedChars() {
+            return getLAChars();
+        }
+    }
+
+    private static final ThreadLocal<Context> CONTEXT =
+            ThreadLocal.withInitial(Context::new);
+
+    /**
+     * Collects the parameters of a query from the tree built
+     * by the parser, where a named parameter is a colon with
+     * an identifier as its child, and an ordinal parameter
+     * is a question mark, with an optional integer child.
+     */
+    private static class ParameterCollector implements NodeTraverser.VisitationStrategy {
+        private String hql;
+        private List<Parameter> parameters;
+
+        private void reset(String hql) {
+            this.hql = hql;
+            parameters = null;
+        }
+
+        /**
+         * The parameters in the order they occur in the text,
+         * which is not the order of the tree, where the FROM
+         * clause comes before the SELECT clause.
+         */
+        private List<Parameter> parameters() {
+            if (parameters == null) {
+                return emptyList();
+            }
+            parameters.sort(comparingInt(parameter -> parameter.offset));
+            return parameters;
+        }
+
+        @Override
+        public void visit(AST node) {
+            char kind;
+            switch (node.getType()) {
+                case HqlTokenTypes.COLON:
+                    kind = Parameter.NAMED;
+                    break;
+                case HqlTokenTypes.PARAM:
+                    kind = Parameter.ORDINAL;
+                    break;
+                default:
+                    return;
+            }
+            AST child = node.getFirstChild();
+            String text = child == null ? "" : child.getText();
+            if (kind == Parameter.NAMED) {
+                if (child == null || child.getType() != HqlTokenTypes.IDENT) {
+                    kind = Parameter.OTHER;
+                }
+            }
+            else if (child == null || child.getType() != HqlTokenTypes.NUM_INT) {
+                kind = Parameter.OTHER;
+            }
+            else {
+                try {
+                    parseInt(text);
+                } catch (NumberFormatException nfe) {
+                    return;
+                }
+            }
+            if (parameters == null) {
+                parameters = new ArrayList<>();
+            }
+            parameters.add(new Parameter(kind, node.getText(), text,
+                    offset(hql, node.getLine(), node.getColumn())));
+        }
+    }
+
+    /**
+     * Convert a line and column, as tracked by the lexer, to
+     * a position in the text of the query, counting from 1,
+     * and counting {@code \r\n}, {@code \r} and {@code \n} as
+     * line breaks, just like the lexer. An unknown line or
+     * column is taken to be the first.
+     */
+    static int offset(String hql, int line, int column) {
+        int index = 0;
+        for (int i = 1; i < line && index < hql.length(); i++) {
+            while (index < hql.length()) {
+                char ch = hql.charAt(index++);
+                if (ch == '\n') {
+                    break;
+                }
+                if (ch == '\r') {
+                    if (index < hql.length() && hql.charAt(index) == '\n') {
+                        index++;
                     }
+                    break;
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+        return index + Math.max(column, 1);
+    }
+
+    private static class WorkaroundASTFactory extends SqlASTFactory {
+        private WorkaroundASTFactory(HqlSqlWalker walker) {
+            super(walker);
+        }
+
+        @Override
+        public Class getASTNodeType(int tokenType) {
+            return tokenType == CONSTRUCTOR ?
+                    WorkaroundConstructorNode.class :
+                    super.getASTNodeType(tokenType);
         }
     }
 
     private static class JavaConstantConverter implements NodeTraverser.VisitationStrategy {
-        private final MockSessionFactory factory;
+        private MockSessionFactory factory;
         private AST dotRoot;
 
-        private JavaConstantConverter(MockSessionFactory factory) {
+        private void reset(MockSessionFactory factory) {
             this.factory = factory;
+            dotRoot = null;
         }
 
         @Override
@@ -204,27 +537,47 @@ class Validation {
         private boolean isConstantValue(String name, MockSessionFactory factory) {
             return (!factory.getSessionFactoryOptions().isConventionalJavaConstants()
                     || JAVA_CONSTANT_PATTERN.matcher(name).matches())
-                && factory.isFieldDefined(qualifier(name), unqualify(name));
+                && factory.fieldExists(qualifier(name), unqualify(name));
         }
     }
 
 
-    private static void setHandler(Object object, ParseErrorHandler handler) {
-        try {
-            Field field = object.getClass().getDeclaredField("parseErrorHandler");
-            field.setAccessible(true);
-            field.set(object, handler);
-        } catch (Exception e) {
-            e.printStackTrace();
+    //the parseErrorHandler field of each parser and walker class
+    private static final ClassValue<Field> HANDLER_FIELDS =
+            new ClassValue<Field>() {
+                @Override
+                protected Field computeValue(Class<?> type) {
+                    try {
+                        Field field = type.getDeclaredField("parseErrorHandler");
+                        field.setAccessible(true);
+                        return field;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        return null;
+                    }
+                }
+            };
+
+    static void setHandler(Object object, ParseErrorHandler handler) {
+        Field field = HANDLER_FIELDS.get(object.getClass());
+        if (field != null) {
+            try {
+                field.set(object, handler);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
     }
 
     private static class Filter implements Handler {
         private Handler delegate;
+        private String hql;
         private int errorCount;
 
-        private Filter(Handler delegate) {
+        private void reset(Handler delegate, String hql) {
             this.delegate = delegate;
+            this.hql = hql;
+            errorCount = 0;
         }
 
         @Override
@@ -252,38 +605,17 @@ class Validation {
                 return;
             }
 
-            String text = e.getMessage();
-            switch (text) {
-                case "node did not reference a map":
-                    text = "key(), value(), or entry() argument must be map element";
-                    break;
-                case "entry(*) expression cannot be further de-referenced":
-                    text = "entry() has no members";
-                    break;
-                case "FROM expected (non-filter queries must contain a FROM clause)":
-                    text = "missing from clause or select list";
-                    break;
-            }
+            String text = MessageRewriter.INSTANCE.rewrite(e.getMessage());
 
             errorCount++;
+            //the handler knows nothing of the lines of the query
             delegate.reportError(new RecognitionException(text,
-                    e.fileName, e.line, e.column));
+                    e.fileName, 1, offset(hql, e.line, e.column)));
         }
 
         @Override
         public void reportError(String text) {
-            Matcher matcher =
-                    compile("Unable to resolve path \\[(.*)\\], unexpected token \\[(.*)\\]")
-                            .matcher(text);
-            if (matcher.matches()
-                    && matcher.group(1)
-                    .startsWith(matcher.group(2))) {
-                text = matcher.group(1) + " is not defined";
-            }
-
-            if (text.startsWith("Legacy-style query parameters")) {
-                text = "illegal token: ? (use ?1, ?2)";
-            }
+            text = MessageRewriter.INSTANCE.rewrite(text);
 
             errorCount++;
             delegate.reportError(text);
@@ -0,0 +1,575 @@
+package org.hibernate.query.validator;
+
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.CompositeType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Collections.unmodifiableSet;
+import static org.hibernate.query.validator.HQLProcessor.CACHE_OPTION;
+import static org.hibernate.query.validator.MockSessionFactory.typeHelper;
+import static org.hibernate.query.validator.MockSessionFactory.typeResolver;
+
+/**
+ * A cache of validation results, kept in memory for the
+ * duration of a compilation, and optionally on disk from
+ * one build to the next.
+ *
+ * Each entry is keyed by the text of the query and the
+ * function whitelist, and remembers both the result of
+ * validating the query and every lookup against the
+ * metamodel that was made while validating it, along
+ * with its result. An entry is reused only if each lookup
+ * still has the same result, in which case the query is
+ * not parsed again. The lookups are repeated once per
+ * processing round, since new entities may be added in
+ * a later round.
+ *
+ * The cache keeps a graph from each lookup to the entries
+ * which depend on it. A lookup shared by many entries is
+ * repeated just once per round, and when its result has
+ * changed, every entry depending on it is discarded, and
+ * only those queries are validated again.
+ *
+ * The cache also remembers the queries occurring in each
+ * class annotated {@code @CheckHQL}, so that they may be
+ * validated again when the class is not recompiled, but
+ * is still presented to the processor, as happens in an
+ * incremental build with Gradle. Only the javac processor
+ * does this: ECJ and Eclipse never present an unchanged
+ * unit to the processor, and so its queries are validated
+ * again only when it is recompiled.
+ *
+ * @see HQLProcessor#CACHE_OPTION
+ */
+final class ValidationCache {
+
+    //kinds of dependency
+    static final char ENTITY = 'E';
+    static final char PROPERTY = 'P';
+    static final char COLLECTION = 'C';
+    static final char ELEMENT_PROPERTY = 'Q';
+    static final char CLASS = 'K';
+    static final char FIELD = 'F';
+    static final char CONSTRUCTOR = 'N';
+
+    static final String ABSENT = "-";
+    static final String PRESENT = "+";
+
+    private static final int VERSION = 8;
+
+    /**
+     * Entries which go unused for this many builds
+     * in a row are discarded.
+     */
+    private static final int MAX_AGE = 10;
+
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    //the keys of the entries which depend on each lookup
+    private final Map<String, Set<String>> dependents = new ConcurrentHashMap<>();
+    //the current result of each lookup repeated this round
+    private final Map<String, String> verifiedLookups = new ConcurrentHashMap<>();
+    private final Map<String, List<Occurrence>> occurrences = new ConcurrentHashMap<>();
+    //the classes whose occurrences were used in this build
+    private final Set<String> seenClasses = ConcurrentHashMap.newKeySet();
+    private volatile int round;
+
+    private ValidationCache(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Create a cache, backed by the file named by the
+     * processor option {@value HQLProcessor#CACHE_OPTION},
+     * if it was specified.
+     */
+    static ValidationCache open(Map<String, String> options) {
+        String fileName = options.get(CACHE_OPTION);
+        if (fileName == null || fileName.isEmpty()) {
+            return new ValidationCache(null);
+        }
+        ValidationCache cache = new ValidationCache(Paths.get(fileName));
+        try {
+            cache.load();
+        }
+        catch (IOException e) {
+            //a missing or corrupt cache is an empty cache
+            cache.entries.clear();
+            cache.dependents.clear();
+            cache.occurrences.clear();
+        }
+        return cache;
+    }
+
+    static String key(String hql, String functionWhitelistKey) {
+        return hql + '\0' + functionWhitelistKey;
+    }
+
+    /**
+     * Called at the start of each processing round, after
+     * which every entry must be verified again before it
+     * is reused.
+     */
+    void startRound() {
+        round++;
+        verifiedLookups.clear();
+    }
+
+    /**
+     * Get the remembered result of validating a query,
+     * if it is still up to date.
+     *
+     * @return the result, or null if there is no result,
+     *         or if it is out of date
+     */
+    Validation.Result get(String key, MockSessionFactory factory) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        else if (entry.verifiedRound == round) {
+            return entry.result;
+        }
+        else if (entry.cacheable && isUpToDate(entry, factory)) {
+            entry.verifiedRound = round;
+            return entry.result;
+        }
+        else {
+            remove(key, entry);
+            return null;
+        }
+    }
+
+    void put(String key, Recording recording, Validation.Result result) {
+        Entry entry = new Entry(recording.dependencies, result);
+        entry.cacheable = recording.cacheable;
+        entry.verifiedRound = round;
+        Entry replaced = entries.put(key, entry);
+        if (replaced != null) {
+            removeDependents(key, replaced);
+        }
+        addDependents(key, entry);
+    }
+
+    private void addDependents(String key, Entry entry) {
+        List<String> dependencies = entry.dependencies;
+        for (int i = 0; i < dependencies.size(); i += 3) {
+            dependents.compute(
+                    dependencies.get(i) + dependencies.get(i + 1),
+                    (lookup, keys) -> {
+                        if (keys == null) {
+                            keys = ConcurrentHashMap.newKeySet();
+                        }
+                        keys.add(key);
+                        return keys;
+                    });
+        }
+    }
+
+    /**
+     * Remove the edges from the lookups an entry depends on
+     * to the entry, and any lookup left with no dependents,
+     * so that the graph does not outgrow the entries.
+     */
+    private void removeDependents(String key, Entry entry) {
+        List<String> dependencies = entry.dependencies;
+        for (int i = 0; i < dependencies.size(); i += 3) {
+            dependents.computeIfPresent(
+                    dependencies.get(i) + dependencies.get(i + 1),
+                    (lookup, keys) -> {
+                        keys.remove(key);
+                        return keys.isEmpty() ? null : keys;
+                    });
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            removeDependents(key, entry);
+        }
+    }
+
+    /**
+     * Repeat each lookup that was made while validating
+     * the query, unless it was already repeated in this
+     * round, and check it still has the same result. If
+     * not, discard every entry which depends on it.
+     */
+    private boolean isUpToDate(Entry entry, MockSessionFactory factory) {
+        List<String> dependencies = entry.dependencies;
+        for (int i = 0; i < dependencies.size(); i += 3) {
+            String kind = dependencies.get(i);
+            String key = dependencies.get(i + 1);
+            String lookup = kind + key;
+            String result = verifiedLookups.get(lookup);
+            if (result == null) {
+                result = factory.lookup(kind.charAt(0), key);
+                if (result == null) {
+                    //the lookup can't be repeated
+                    return false;
+                }
+                verifiedLookups.put(lookup, result);
+            }
+            if (!dependencies.get(i + 2).equals(result)) {
+                Set<String> keys = dependents.get(lookup);
+                if (keys != null) {
+                    for (String staleKey: keys.toArray(new String[0])) {
+                        Entry staleEntry = entries.get(staleKey);
+                        //but not if it was validated this round
+                        if (staleEntry != null
+                                && staleEntry.verifiedRound != round) {
+                            remove(staleKey, staleEntry);
+                        }
+                    }
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget the queries remembered for the given class,
+     * which is about to be compiled from source.
+     */
+    void startClass(String className) {
+        if (file != null) {
+            seenClasses.add(className);
+            occurrences.put(className, new ArrayList<>());
+        }
+    }
+
+    /**
+     * Remember a query occurring in a class that is being
+     * compiled from source.
+     */
+    void remember(String className, Occurrence occurrence) {
+        if (file != null) {
+            occurrences.computeIfAbsent(className, name -> new ArrayList<>())
+                    .add(occurrence);
+        }
+    }
+
+    /**
+     * The queries remembered for a class that was not
+     * compiled from source.
+     */
+    List<Occurrence> getOccurrences(String className) {
+        seenClasses.add(className);
+        List<Occurrence> result = occurrences.get(className);
+        return result == null ? new ArrayList<>() : result;
+    }
+
+    /**
+     * Describe a type occurring as the result of a lookup,
+     * in enough detail that any change to the mapping of
+     * the type would change the description.
+     */
+    static String describe(Type type) {
+        if (type == null) {
+            return ABSENT;
+        }
+        else if (type.isEntityType()) {
+            return "e:" + ((EntityType) type).getAssociatedEntityName();
+        }
+        else if (type.isCollectionType()) {
+            return "c:" + ((CollectionType) type).getRole()
+                    + ":" + type.getClass().getSimpleName();
+        }
+        else if (type.isComponentType()) {
+            CompositeType component = (CompositeType) type;
+            String[] names = component.getPropertyNames();
+            Type[] types = component.getSubtypes();
+            StringBuilder result = new StringBuilder("k:")
+                    .append(type.getName()).append('{');
+            for (int i = 0; i < names.length; i++) {
+                result.append(names[i]).append('=')
+                        .append(describe(types[i])).append(';');
+            }
+            return result.append('}').toString();
+        }
+        else {
+            return "b:" + type.getName();
+        }
+    }
+
+    /**
+     * Recover a type from its description, if possible.
+     *
+     * @return the type, or null if the description does
+     *         not determine the type
+     */
+    static Type resolve(String description) {
+        if (description.startsWith("b:")) {
+            return typeResolver.basic(description.substring(2));
+        }
+        else if (description.startsWith("e:")) {
+            return typeHelper.entity(description.substring(2));
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * Write the cache back to disk, if it is backed by a
+     * file, discarding entries that have not been used
+     * for a while.
+     */
+    void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(VERSION);
+            for (Map.Entry<String, Entry> keyed : entries.entrySet()) {
+                Entry entry = keyed.getValue();
+                if (entry.verifiedRound < 0) {
+                    entry.age++;
+                }
+                else {
+                    entry.age = 0;
+                }
+                if (!entry.cacheable || entry.age >= MAX_AGE) {
+                    remove(keyed.getKey(), entry);
+                }
+            }
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeString(out, entry.getKey());
+                entry.getValue().write(out);
+            }
+            //a class not seen in this build no longer exists,
+            //or is not being compiled by this build
+            occurrences.keySet().retainAll(seenClasses);
+            out.writeInt(occurrences.size());
+            for (Map.Entry<String, List<Occurrence>> entry : occurrences.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Occurrence occurrence : entry.getValue()) {
+                    occurrence.write(out);
+                }
+            }
+        }
+        Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String key = readString(in);
+                Entry entry = Entry.read(in);
+                entries.put(key, entry);
+                addDependents(key, entry);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String className = readString(in);
+                List<Occurrence> list = new ArrayList<>();
+                for (int j = in.readInt(); j > 0; j--) {
+                    list.add(Occurrence.read(in));
+                }
+                occurrences.put(className, list);
+            }
+        }
+    }
+
+    /**
+     * Write a string as its length followed by its UTF-8
+     * encoding, since {@link DataOutputStream#writeUTF}
+     * fails for a string longer than 65535 bytes.
+     */
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by {@link #writeString}.
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("corrupt string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * A query occurring in a class annotated {@code @CheckHQL},
+     * along with the arguments bound to its parameters at
+     * that occurrence, and its location.
+     */
+    static final class Occurrence {
+        final String hql;
+        final boolean checkParams;
+        final Set<Integer> setParameterLabels;
+        final Set<String> setParameterNames;
+        /**
+         * The source file and line, in the form the compiler
+         * uses to report a diagnostic.
+         */
+        final String location;
+
+        /**
+         * The given sets are copied, since validation consumes
+         * the sets it is passed.
+         */
+        Occurrence(String hql, boolean checkParams,
+                   Set<Integer> setParameterLabels,
+                   Set<String> setParameterNames,
+                   String location) {
+            this.hql = hql;
+            this.checkParams = checkParams;
+            this.setParameterLabels = unmodifiableSet(new HashSet<>(setParameterLabels));
+            this.setParameterNames = unmodifiableSet(new HashSet<>(setParameterNames));
+            this.location = location;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            writeString(out, hql);
+            out.writeBoolean(checkParams);
+            out.writeInt(setParameterLabels.size());
+            for (int label : setParameterLabels) {
+                out.writeInt(label);
+            }
+            out.writeInt(setParameterNames.size());
+            for (String name : setParameterNames) {
+                writeString(out, name);
+            }
+            writeString(out, location);
+        }
+
+        private static Occurrence read(DataInputStream in) throws IOException {
+            String hql = readString(in);
+            boolean checkParams = in.readBoolean();
+            Set<Integer> labels = new HashSet<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                labels.add(in.readInt());
+            }
+            Set<String> names = new HashSet<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                names.add(readString(in));
+            }
+            return new Occurrence(hql, checkParams, labels, names, readString(in));
+        }
+    }
+
+    /**
+     * The remembered result of validating a query.
+     */
+    private static final class Entry {
+        private final List<String> dependencies;
+        private final Validation.Result result;
+        private boolean cacheable = true;
+        private int age;
+        //the round in which the entry was last verified,
+        //or -1 if it was loaded and not yet verified
+        private volatile int verifiedRound = -1;
+
+        private Entry(List<String> dependencies,
+                      Validation.Result result) {
+            this.dependencies = dependencies;
+            this.result = result;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeByte(age);
+            out.writeInt(dependencies.size());
+            for (String dependency : dependencies) {
+                writeString(out, dependency);
+            }
+            result.diagnostics.write(out);
+            List<Validation.Parameter> parameters = result.parameters;
+            if (parameters == null) {
+                out.writeInt(-1);
+            }
+            else {
+                out.writeInt(parameters.size());
+                for (Validation.Parameter parameter : parameters) {
+                    out.writeChar(parameter.kind);
+                    writeString(out, parameter.prefix);
+                    writeString(out, parameter.text);
+                    out.writeInt(parameter.offset);
+                }
+            }
+        }
+
+        private static Entry read(DataInputStream in) throws IOException {
+            int age = in.readByte();
+            List<String> dependencies = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                dependencies.add(readString(in));
+            }
+            Diagnostics diagnostics = Diagnostics.read(in);
+            List<Validation.Parameter> parameters = null;
+            int count = in.readInt();
+            if (count >= 0) {
+                parameters = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    parameters.add(new Validation.Parameter(in.readChar(),
+                            readString(in), readString(in), in.readInt()));
+                }
+            }
+            Entry entry = new Entry(dependencies,
+                    new Validation.Result(diagnostics, parameters));
+            entry.age = age;
+            return entry;
+        }
+    }
+
+    /**
+     * Records the lookups made by the {@link MockSessionFactory}
+     * while validating a query.
+     */
+    static final class Recording {
+        private final List<String> dependencies = new ArrayList<>();
+        private boolean cacheable = true;
+
+        void depend(char kind, String key, String result) {
+            if (result == null) {
+                //we would not be able to repeat this lookup
+                cacheable = false;
+            }
+            else {
+                dependencies.add(String.valueOf(kind));
+                dependencies.add(key);
+                dependencies.add(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.hibernate.query.validator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+import static java.lang.Integer.parseInt;
+import static org.hibernate.query.validator.HQLProcessor.THREADS_OPTION;
+
+/**
+ * Validates queries on a pool of worker threads. The
+ * queries submitted are validated in parallel when the
+ * queue is {@linkplain #drain drained}, while the compiler
+ * thread waits, so that the compiler is never running at
+ * the same time as the validator. The diagnostics for each
+ * query are buffered, and then reported on the compiler
+ * thread, in the order the queries were submitted.
+ *
+ * Without a pool, or once the pool has been shut down, each
+ * query is validated immediately on the compiler thread.
+ *
+ * @see HQLProcessor#THREADS_OPTION
+ */
+final class ValidationQueue {
+
+    private final ForkJoinPool pool;
+    private final List<Pending> pending = new ArrayList<>();
+
+    private ValidationQueue(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Create a queue with the number of worker threads
+     * given by the processor option
+     * {@value HQLProcessor#THREADS_OPTION}.
+     */
+    static ValidationQueue open(Map<String, String> options) {
+        String threads = options.get(THREADS_OPTION);
+        int parallelism;
+        try {
+            parallelism = threads == null ? 1 : parseInt(threads.trim());
+        }
+        catch (NumberFormatException e) {
+            parallelism = 1;
+        }
+        if (parallelism == 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        return new ValidationQueue(parallelism > 1 ?
+                new ForkJoinPool(parallelism) : null);
+    }
+
+    /**
+     * Validate a query, eventually reporting its diagnostics
+     * to the given handler.
+     *
+     * @param validation the validation, which must report
+     *                   its diagnostics to the handler it
+     *                   is passed, and must not depend on
+     *                   any state of the current thread
+     */
+    void submit(Validation.Handler handler,
+                Consumer<Validation.Handler> validation) {
+        if (pool == null || pool.isShutdown()) {
+            validation.accept(handler);
+        }
+        else {
+            pending.add(new Pending(handler, validation));
+        }
+    }
+
+    /**
+     * Validate every query submitted so far, and report
+     * their diagnostics in order on the current thread.
+     */
+    void drain() {
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(pending.size());
+            for (Pending query : pending) {
+                tasks.add(pool.submit(() ->
+                        query.validation.accept(query.diagnostics)));
+            }
+            //wait for every task, even if one fails, since
+            //the compiler must not resume while any is running
+            Throwable failure = null;
+            for (ForkJoinTask<?> task : tasks) {
+                try {
+                    task.join();
+                }
+                catch (RuntimeException | Error e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            else if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+            for (Pending query : pending) {
+                query.diagnostics.replay(query.handler);
+            }
+        }
+        finally {
+            pending.clear();
+        }
+    }
+
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static final class Pending {
+        private final Validation.Handler handler;
+        private final Consumer<Validation.Handler> validation;
+        private final Diagnostics diagnostics = new Diagnostics();
+
+        private Pending(Validation.Handler handler,
+                        Consumer<Validation.Handler> validation) {
+            this.handler = handler;
+            this.validation = validation;
+        }
+    }
+}
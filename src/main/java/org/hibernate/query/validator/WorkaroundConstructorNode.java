@@ -22,13 +22,13 @@ public class WorkaroundConstructorNode extends ConstructorNode {
             String path = ((PathNode) getFirstChild()).getPath();
             MockSessionFactory factory = (MockSessionFactory)
                     getSessionFactoryHelper().getFactory();
-            if (!factory.isClassDefined(path)) {
+            if (!factory.classExists(path)) {
                 throw new DetailedSemanticException(path
                         + " does not exist");
             }
             @SuppressWarnings("unchecked")
             List<Type> argumentTypes = getConstructorArgumentTypeList();
-            if (!factory.isConstructorDefined(path, argumentTypes)) {
+            if (!factory.constructorExists(path, argumentTypes)) {
                 List<String> typeNames = argumentTypes.stream()
                         .map(Type::getName)
                         .collect(toList());
@@ -12,8 +12,12 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
 import static javax.tools.ToolProvider.getSystemJavaCompiler;
 import static org.hibernate.query.validator.HQLProcessor.forceEclipseForTesting;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -73,6 +77,13 @@ public class HQLValidationTest {
 
         assertTrue(errors.contains("BadQueries.java:48: warning: :hello does not occur in the query"));
 
+        assertTrue(errors.contains("BadQueries.java:53: warning: xxx is not defined"));
+        assertTrue(errors.contains("BadQueries.java:54: error: test.Person has no mapped firstName"));
+        assertTrue(errors.contains("BadQueries.java:55: warning: :minId is not set"));
+        assertFalse(errors.contains("BadQueries.java:55: warning: :name is not set"));
+        //in the order they occur in the query
+        assertTrue(errors.contains("BadQueries.java:58: warning: :default, :note, :id are not set"));
+
     }
 
     @Test
@@ -125,6 +136,152 @@ public class HQLValidationTest {
 
         assertTrue(errors.contains(":hello does not occur in the query") && errors.contains("BadQueries.java (at line 48)"));
 
+        assertTrue(errors.contains("xxx is not defined") && errors.contains("BadQueries.java (at line 53)"));
+        assertTrue(errors.contains("test.Person has no mapped firstName") && errors.contains("BadQueries.java (at line 54)"));
+        assertTrue(errors.contains(":minId is not set") && errors.contains("BadQueries.java (at line 55)"));
+        assertTrue(errors.contains(":default, :note, :id are not set") && errors.contains("BadQueries.java (at line 58)"));
+
+    }
+
+    @Test
+    public void testECJEntityNamesNotInScope() throws Exception {
+        String errors = compileWithECJ("names", "names.model");
+
+        //the entity name is resolved without importing the class
+        assertFalse(errors.contains("Article is not mapped"));
+        assertTrue(errors.contains("Article has no mapped name") && errors.contains("ArticleQueries.java (at line 12)"));
+        assertFalse(errors.contains("ArticleQueries.java (at line 11)"));
+    }
+
+    @Test
+    public void testJavacWithCache() throws Exception {
+        Path cache = Files.createTempDirectory("validator-test-cache")
+                .resolve("queries.cache");
+        List<String> options = singletonList(
+                "-Ahibernate.query.validator.cache=" + cache);
+
+        String errors = compileWithJavac(options, "test", "test.test");
+        assertTrue(Files.exists(cache));
+        assertTrue(errors.contains("BadQueries.java:17: error: Person has no mapped firstName"));
+
+        //the second time around the results come from the cache
+        assertEquals(errors, compileWithJavac(options, "test", "test.test"));
+    }
+
+    @Test
+    public void testJavacWithSnapshot() throws Exception {
+        Path snapshot = Files.createTempDirectory("validator-test-snapshot")
+                .resolve("metamodel.snapshot");
+        List<String> options = singletonList(
+                "-Ahibernate.query.validator.snapshot=" + snapshot);
+
+        String errors = compileWithJavac(options, "test", "test.test");
+        assertTrue(Files.exists(snapshot));
+        assertEquals(compileWithJavac("test", "test.test"), errors);
+
+        //the second time around the metamodel comes from the snapshot
+        assertEquals(errors, compileWithJavac(options, "test", "test.test"));
+    }
+
+    @Test
+    public void testJavacSnapshotAfterTargetEntityChanged() throws Exception {
+        Path tempDir = Files.createTempDirectory("validator-test-snapshot");
+        Path sourceDir = Files.createDirectories(tempDir.resolve("snapshot"));
+        List<String> sources = new ArrayList<>();
+        for (String name: asList("Owner.java", "Target.java", "OwnerQueries.java")) {
+            Path source = sourceDir.resolve(name);
+            Files.copy(Paths.get("src/test/source/snapshot").resolve(name), source);
+            sources.add(source.toString());
+        }
+        Path target = sourceDir.resolve("Target.java");
+        List<String> options = asList(
+                "-Ahibernate.query.validator.snapshot=" + tempDir.resolve("metamodel.snapshot"),
+                "-processor", "org.hibernate.query.validator.HQLProcessor");
+
+        String errors = compileWithJavac(options,
+                Files.createTempDirectory("validator-test-out"), sources);
+        assertFalse(errors.contains("error"));
+
+        //rename only the target entity, which no query
+        //mentions by name
+        Files.write(target, new String(Files.readAllBytes(target))
+                .replace("\"Target\"", "\"Goal\"").getBytes());
+        errors = compileWithJavac(options,
+                Files.createTempDirectory("validator-test-out"), sources);
+        //the same as if there were no snapshot
+        assertEquals(compileWithJavac(options.subList(1, 3),
+                Files.createTempDirectory("validator-test-out"), sources),
+                errors);
+    }
+
+    @Test
+    public void testJavacRecheckingUnchangedClass() throws Exception {
+        Path tempDir = Files.createTempDirectory("validator-test-incremental");
+        Path sourceDir = Files.createDirectories(tempDir.resolve("incremental"));
+        Path classDir = Files.createDirectories(tempDir.resolve("classes"));
+        Path entity = sourceDir.resolve("Book.java");
+        Path queries = sourceDir.resolve("BookQueries.java");
+        Files.copy(Paths.get("src/test/source/incremental/Book.java"), entity);
+        Files.copy(Paths.get("src/test/source/incremental/BookQueries.java"), queries);
+        List<String> options = asList(
+                "-Ahibernate.query.validator.cache=" + tempDir.resolve("queries.cache"),
+                "-processor", "org.hibernate.query.validator.HQLProcessor");
+
+        String errors = compileWithJavac(options, classDir,
+                asList(entity.toString(), queries.toString()));
+        assertFalse(errors.contains("error"));
+
+        //rename a field of the entity, and recompile only the
+        //entity, as an incremental build would, presenting the
+        //class containing the query to the processor
+        Files.write(entity, new String(Files.readAllBytes(entity))
+                .replace("title", "name").getBytes());
+        errors = compileWithJavac(options, classDir,
+                asList(entity.toString(), "incremental.BookQueries"));
+        assertTrue(errors.contains("BookQueries.java:11: Book has no mapped title"));
+        //the parameters bound at each occurrence are remembered
+        assertFalse(errors.contains(":id is not set"));
+    }
+
+    @Test
+    public void testJavacPositionsInEscapedLiterals() throws Exception {
+        String errors = compileWithJavac("positions");
+
+        //the caret points into the literal, past the escapes,
+        //on the second line of the query
+        assertEquals(":id", markedText(errors,
+                "ReviewQueries.java:11: warning: :id is not set", 3));
+        assertEquals("select", markedText(errors,
+                "ReviewQueries.java:13: error: unexpected token: select", 6));
+    }
+
+    @Test
+    public void testJavacInParallel() throws Exception {
+        List<String> options = singletonList(
+                "-Ahibernate.query.validator.threads=4");
+
+        //diagnostics are reported in the same order
+        assertEquals(compileWithJavac("test", "test.test"),
+                compileWithJavac(options, "test", "test.test"));
+    }
+
+    @Test
+    public void testJavacPlugin() throws Exception {
+        List<String> options = singletonList("-Xplugin:HQLValidator");
+
+        String errors = compileWithJavac(options, "test", "test.test");
+        assertTrue(errors.contains("BadQueries.java:17: error: Person has no mapped firstName"));
+        assertTrue(errors.contains("BadQueries.java:45: warning: :name is not set"));
+        assertTrue(errors.contains("Person.java:22: error: Person has no mapped x"));
+        //the queries are not validated a second time by the processor
+        assertEquals(errors.indexOf("BadQueries.java:17:"),
+                errors.lastIndexOf("BadQueries.java:17:"));
+
+        //queries built by concatenating constants are validated too
+        errors = compileWithJavac(options, "plugin");
+        assertTrue(errors.contains("AuthorQueries.java:16: error: Author has no mapped title"));
+        assertFalse(errors.contains("AuthorQueries.java:13:"));
+        assertFalse(errors.contains("AuthorQueries.java:19:"));
     }
 
     @Test
@@ -178,13 +335,47 @@ public class HQLValidationTest {
 
         assertTrue(errors.contains(":hello does not occur in the query") && errors.contains("BadQueries.java (at line 48)"));
 
+        assertTrue(errors.contains("xxx is not defined") && errors.contains("BadQueries.java (at line 53)"));
+        assertTrue(errors.contains("test.Person has no mapped firstName") && errors.contains("BadQueries.java (at line 54)"));
+        assertTrue(errors.contains(":minId is not set") && errors.contains("BadQueries.java (at line 55)"));
+        assertTrue(errors.contains(":default, :note, :id are not set") && errors.contains("BadQueries.java (at line 58)"));
+
         forceEclipseForTesting = false;
     }
 
+    /**
+     * The text marked by the caret which javac prints under
+     * the source line following the given diagnostic.
+     */
+    private static String markedText(String errors, String diagnostic, int length) {
+        int index = errors.indexOf(diagnostic);
+        assertTrue(diagnostic, index >= 0);
+        String[] lines = errors.substring(index).split("\\R", 4);
+        int column = lines[2].indexOf('^');
+        return lines[1].substring(column, column + length);
+    }
+
     private String compileWithJavac(String... packages) throws IOException {
-        Path tempDir = Files.createTempDirectory("validator-test-out");
+        return compileWithJavac(emptyList(), packages);
+    }
 
-        List<String> files = new ArrayList<>();
+    private String compileWithJavac(List<String> options, String... packages) throws IOException {
+        List<String> sources = new ArrayList<>();
+        for (String pack: packages) {
+            Files.list(Paths.get("src/test/source")
+                        .resolve(pack.replace('.', '/')))
+                    .map(Path::toString)
+                    .filter(s -> s.endsWith(".java"))
+                    .forEach(sources::add);
+        }
+        return compileWithJavac(options,
+                Files.createTempDirectory("validator-test-out"),
+                sources);
+    }
+
+    private String compileWithJavac(List<String> options, Path tempDir,
+                                    List<String> sources) throws IOException {
+        List<String> files = new ArrayList<>(options);
 
 //        files.add("-verbose");
 
@@ -201,6 +392,8 @@ public class HQLValidationTest {
         else {
             cp.append("out/production/query-validator");
         }
+        //classes compiled earlier into the same directory
+        cp.append(":").append(tempDir);
 
         Files.list(Paths.get("lib"))
                 .map(Path::toString)
@@ -211,13 +404,7 @@ public class HQLValidationTest {
         System.out.println(cp);
         files.add(cp.toString());
 
-        for (String pack: packages) {
-            Files.list(Paths.get("src/test/source")
-                        .resolve(pack.replace('.', '/')))
-                    .map(Path::toString)
-                    .filter(s -> s.endsWith(".java"))
-                    .forEach(files::add);
-        }
+        files.addAll(sources);
 
         String[] args = files.toArray(new String[0]);
         ByteArrayOutputStream err = new ByteArrayOutputStream();
@@ -0,0 +1,10 @@
+package incremental;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+@Entity
+public class Book {
+    @Id long id;
+    String title;
+}
@@ -0,0 +1,19 @@
+package incremental;
+
+import org.hibernate.query.validator.CheckHQL;
+
+import javax.persistence.EntityManager;
+
+@CheckHQL
+public class BookQueries {
+
+    public void titles(EntityManager em) {
+        em.createQuery("select b.title from Book b").getResultList();
+    }
+
+    public void byId(EntityManager em, long id) {
+        em.createQuery("select b from Book b where b.id = :id")
+                .setParameter("id", id)
+                .getSingleResult();
+    }
+}
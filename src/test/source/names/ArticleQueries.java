@@ -0,0 +1,14 @@
+package names;
+
+import org.hibernate.query.validator.CheckHQL;
+
+import javax.persistence.EntityManager;
+
+@CheckHQL
+public class ArticleQueries {
+
+    public void articles(EntityManager em) {
+        em.createQuery("select a.title from Article a").getResultList();
+        em.createQuery("select a.name from Article a").getResultList();
+    }
+}
@@ -0,0 +1,10 @@
+package names.model;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+@Entity(name = "Article")
+public class Post {
+    @Id long id;
+    String title;
+}
@@ -0,0 +1,10 @@
+package plugin;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+@Entity
+public class Author {
+    @Id long id;
+    String name;
+}
@@ -0,0 +1,21 @@
+package plugin;
+
+import org.hibernate.query.validator.CheckHQL;
+
+import javax.persistence.EntityManager;
+
+@CheckHQL
+public class AuthorQueries {
+
+    static final String AUTHORS = "select a from Author a";
+
+    public void authors(EntityManager em) {
+        em.createQuery(AUTHORS + " where a.name = :name")
+                .setParameter("name", "Gavin")
+                .getResultList();
+        em.createQuery(AUTHORS + " where a.title = :title")
+                .setParameter("title", "Mr")
+                .getResultList();
+        em.createQuery(AUTHORS).getResultList();
+    }
+}
@@ -0,0 +1,10 @@
+package positions;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+@Entity
+public class Review {
+    @Id long id;
+    String title;
+}
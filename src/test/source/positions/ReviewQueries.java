@@ -0,0 +1,16 @@
+package positions;
+
+import org.hibernate.query.validator.CheckHQL;
+
+import javax.persistence.EntityManager;
+
+@CheckHQL
+public class ReviewQueries {
+
+    public void reviews(EntityManager em) {
+        em.createQuery("select r from Review r\n\twhere r.title = \'x\' and r.id = :id")
+                .getResultList();
+        em.createQuery("select r from Review r\n\twhere r.title = \'x\' select")
+                .getResultList();
+    }
+}
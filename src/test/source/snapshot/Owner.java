@@ -0,0 +1,11 @@
+package snapshot;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+
+@Entity
+public class Owner {
+    @Id long id;
+    @ManyToOne Target target;
+}
@@ -0,0 +1,13 @@
+package snapshot;
+
+import org.hibernate.query.validator.CheckHQL;
+
+import javax.persistence.EntityManager;
+
+@CheckHQL
+public class OwnerQueries {
+
+    public void targets(EntityManager em) {
+        em.createQuery("select o.target from Owner o").getResultList();
+    }
+}
@@ -0,0 +1,10 @@
+package snapshot;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+@Entity(name = "Target")
+public class Target {
+    @Id long id;
+    String name;
+}
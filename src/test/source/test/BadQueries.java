@@ -50,6 +50,14 @@ public class BadQueries {
         createQuery("select new test.Pair(1,1) from Person p"); //"select new" with literals
         createQuery("select new test.Pair('','') from Person p"); //"select new" with literals
 
+        createQuery("select xxx from Person"); //warning, again
+        createQuery("from test.Person p where p.firstName='gavin'"); //error
+        createQuery("from Person p where p.name = :name and p.id >= :minId")
+                .setParameter("name", "").getResultList(); //same query, other args
+
+        createQuery("select coalesce(p.name, :default) from Person p join p.notes n with n = :note where p.id = :id")
+                .getResultList(); //parameters in the select, from, and where clauses
+
     }
 
     private static Query createQuery(String s) { return new Query(); }